@@ -7,45 +7,75 @@ import java.util.Arrays;
 import java.util.List;
 
 public class AstGenerator {
-    static final String pkg = "com.lctr.wox";
+    static final String pkg = "wox";
+
+    // with `--sealed`, nodes are final classes implementing a sealed
+    // interface, and come with kind ordinals, a switch-based `dispatch` and
+    // helpers for passes; this is what `Expr.java` and `Stmt.java` are
+    // generated with
+    private static boolean sealed = false;
+    // with `--hash-cons`, which implies `--sealed`, expressions also get the
+    // structural hash and comparison `Interner` shares subtrees with, leaving
+    // out positions, i.e., fields named `at`
+    private static boolean hashCons = false;
 
     public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
-            System.err.println("Usage: generate_ast <output directory>");
+        int flags = 0;
+        for (; flags < args.length && args[flags].startsWith("--"); flags++) {
+            if (args[flags].equals("--sealed")) {
+                sealed = true;
+            } else if (args[flags].equals("--hash-cons")) {
+                sealed = true;
+                hashCons = true;
+            } else {
+                break;
+            }
+        }
+        if (args.length - flags != 1) {
+            System.err.println("Usage: generate_ast [--sealed] [--hash-cons] <output directory>");
             System.exit(64);
         }
-        String outputDir = args[0];
+        String outputDir = args[flags];
         // expressions
+        // nodes keep no tokens: names are interned strings and operators their
+        // `TokenType`, while `at` is the position of the token a diagnostic
+        // points at, as handed out by `Source`
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign : Token name, Expr value",
-                "Binary : Expr left, Token operator, Expr right",
-                "Call : Expr callee, List<Expr> arguments",
+                "Assign : String name, int at, Expr value",
+                "Binary : Expr left, TokenType operator, int at, Expr right",
+                "Call : Expr callee, int at, List<Expr> arguments",
                 // like a block, but returns the value of the last expr
                 "Do : List<Expr> body",
-                "Get : Expr object, Token name",
+                "Get : Expr object, String name, int at",
                 "Grouping : Expr expression",
                 // conditionals are expressions instead of statements!
                 "If : Expr condition, Expr when_true, Expr when_false",
-                "Let : Token variable, Expr definition, Expr body",
+                // a call site whose callee body has been substituted in; the
+                // original call is kept around for when the callee is rebound,
+                // which is told by the position of the declaration's name
+                "Inline : Expr.Call call, String callee, int declared, Expr body",
+                "Let : String variable, int at, Expr definition, Expr body",
                 "Literal : Object value",
-                "Set : Expr object, Token name, Expr value",
-                "Super : Token keyword, Token method",
-                "This : Token keyword",
+                // evaluated once per scope declaring `slot`, then reused
+                "Memo : String slot, Expr expression",
+                "Set : Expr object, String name, int at, Expr value",
+                "Super : int at, String method",
+                "This : int at",
                 "Tuple : List<Expr> elements",
-                "Unary : Token operator, Expr right",
-                "Variable: Token name",
+                "Unary : TokenType operator, int at, Expr right",
+                "Variable: String name, int at",
                 "Vector : List<Expr> elements"));
         // statements
         defineAst(outputDir, "Stmt", Arrays.asList(
                 "Block : List<Stmt> statements",
-                "Class : Token name, Expr.Variable superclass,"
+                "Class : String name, int at, Expr.Variable superclass,"
                         + " List<Stmt.Function> methods",
                 "Expression : Expr expression",
-                "Function : Token name, List<Token> params," + " List<Stmt> body",
+                "Function : String name, int at, List<String> params," + " List<Stmt> body",
                 "Loop : List<Stmt> statements",
                 "Print : Expr expression",
-                "Return : Token keyword, Expr value",
-                "Var : Token name, Expr initializer",
+                "Return : int at, Expr value",
+                "Var : String name, int at, Expr initializer",
                 "While : Expr condition, Stmt body"));
     }
 
@@ -56,10 +86,20 @@ public class AstGenerator {
         writer.println("package " + pkg + ";");
         writer.println();
         writer.println("import java.util.List;");
+        if (sealed) {
+            if (hashes(baseName))
+                writer.println("import java.util.Objects;");
+            writer.println("import java.util.function.Consumer;");
+            writer.println();
+            defineSealed(writer, baseName, types);
+            writer.close();
+            return;
+        }
         writer.println();
         writer.println("abstract class " + baseName + " {");
 
         defineVisitor(writer, baseName, types);
+        writer.println();
 
         for (String type : types) {
             String[] parts = type.split(":");
@@ -69,7 +109,6 @@ public class AstGenerator {
             writer.println();
         }
 
-        writer.println();
         writer.println(spaces(2) + "abstract <R> R accept(Visitor<R> visitor);");
 
         writer.println("}");
@@ -108,11 +147,251 @@ public class AstGenerator {
         writer.println(spaces[0] + "}");
     }
 
+    private static void defineSealed(PrintWriter writer, String baseName, List<String> types) {
+        writer.println("sealed interface " + baseName + " {");
+        defineVisitor(writer, baseName, types);
+        writer.println();
+
+        // kind ordinals, dense so that switching over them is a table lookup
+        for (int i = 0; i < types.size(); i++) {
+            writer.println(spaces(2) + "int " + constantOf(types.get(i).split(":")[0].trim()) + " = " + i + ";");
+        }
+        writer.println(spaces(2) + "int KINDS = " + types.size() + ";");
+        writer.println();
+
+        writer.println(spaces(2) + "// the same as `accept`, but dispatching with a switch over `kind()`");
+        writer.println(spaces(2) + "static <R> R dispatch(" + baseName + " " + baseName.toLowerCase()
+                + ", Visitor<R> visitor) {");
+        writer.println(spaces(4) + "switch (" + baseName.toLowerCase() + ".kind()) {");
+        for (String type : types) {
+            String className = type.split(":")[0].trim();
+            writer.println(spaces(6) + "case " + constantOf(className) + ":");
+            writer.println(spaces(8) + "return visitor.visit" + className + baseName + "((" + className + ") "
+                    + baseName.toLowerCase() + ");");
+        }
+        writer.println(spaces(6) + "default:");
+        writer.println(spaces(8) + "throw new IllegalStateException(\"unknown kind \" + "
+                + baseName.toLowerCase() + ".kind());");
+        writer.println(spaces(4) + "}");
+        writer.println(spaces(2) + "}");
+        writer.println();
+
+        if (hashes(baseName))
+            defineHashHelpers(writer, baseName);
+
+        for (String type : types) {
+            String[] parts = type.split(":");
+            defineFinalType(writer, baseName, parts[0].trim(), parts[1].trim());
+            writer.println();
+        }
+
+        writer.println(spaces(2) + "<R> R accept(Visitor<R> visitor);");
+        writer.println();
+        writer.println(spaces(2) + "int kind();");
+        // the helpers walk lists as they are, so walking a lazy body parses it
+        for (String child : childKinds(baseName)) {
+            writer.println();
+            writer.println(spaces(2) + "// calls `action` on every direct child " + child
+                    + " that is not `null`, in order");
+            writer.println(spaces(2) + "void forEach" + child + "(Consumer<? super " + child + "> action);");
+        }
+        if (hashes(baseName)) {
+            writer.println();
+            writer.println(spaces(2) + "// a hash of the node's structure without positions, computed once");
+            writer.println(spaces(2) + "int structuralHash();");
+            writer.println();
+            writer.println(spaces(2) + "// whether `other` has the same structure, comparing children by identity,");
+            writer.println(spaces(2) + "// which is all it takes for nodes that are interned bottom-up");
+            writer.println(spaces(2) + "boolean sameAs(" + baseName + " other);");
+        }
+        writer.println("}");
+    }
+
+    private static void defineFinalType(PrintWriter writer, String baseName, String className, String fieldList) {
+        String[] spaces = { spaces(2), spaces(4), spaces(6), spaces(8) };
+        String[] fields = fieldList.split(", ");
+
+        writer.println(spaces[0] + "final class " + className + " implements " + baseName + " {");
+
+        writer.println(spaces[1] + className + "(" + fieldList + ") {");
+        for (String field : fields) {
+            String name = field.split(" ")[1];
+            writer.println(spaces[2] + "this." + name + " = " + name + ";");
+        }
+        writer.println(spaces[1] + "}");
+
+        writer.println();
+        writer.println(spaces[1] + "@Override");
+        writer.println(spaces[1] + "public <R> R accept(Visitor<R> visitor) {");
+        writer.println(spaces[2] + "return visitor.visit" + className + baseName + "(this);");
+        writer.println(spaces[1] + "}");
+
+        writer.println();
+        writer.println(spaces[1] + "@Override");
+        writer.println(spaces[1] + "public int kind() {");
+        writer.println(spaces[2] + "return " + constantOf(className) + ";");
+        writer.println(spaces[1] + "}");
+
+        for (String child : childKinds(baseName)) {
+            writer.println();
+            writer.println(spaces[1] + "@Override");
+            writer.println(spaces[1] + "public void forEach" + child + "(Consumer<? super " + child + "> action) {");
+            for (String field : fields) {
+                String type = field.split(" ")[0];
+                String name = field.split(" ")[1];
+                if (type.equals(child) || type.startsWith(child + ".")) {
+                    writer.println(spaces[2] + "if (" + name + " != null)");
+                    writer.println(spaces[3] + "action.accept(" + name + ");");
+                } else if (type.equals("List<" + child + ">") || type.startsWith("List<" + child + ".")) {
+                    writer.println(spaces[2] + "if (" + name + " != null)");
+                    writer.println(spaces[3] + name + ".forEach(action);");
+                }
+            }
+            writer.println(spaces[1] + "}");
+        }
+
+        // copies with one field replaced, for passes that rebuild nodes
+        for (String field : fields) {
+            String type = field.split(" ")[0];
+            String name = field.split(" ")[1];
+            StringBuilder arguments = new StringBuilder();
+            for (String other : fields) {
+                if (arguments.length() > 0)
+                    arguments.append(", ");
+                arguments.append(other.split(" ")[1]);
+            }
+            writer.println();
+            writer.println(spaces[1] + className + " with" + Character.toUpperCase(name.charAt(0))
+                    + name.substring(1) + "(" + type + " " + name + ") {");
+            writer.println(spaces[2] + "if (" + name + " == this." + name + ")");
+            writer.println(spaces[3] + "return this;");
+            writer.println(spaces[2] + "return new " + className + "(" + arguments + ");");
+            writer.println(spaces[1] + "}");
+        }
+
+        if (hashes(baseName))
+            defineHashing(writer, baseName, className, fields);
+
+        writer.println();
+        for (String field : fields) {
+            writer.println(spaces[1] + "final " + field + ";");
+        }
+        if (hashes(baseName))
+            writer.println(spaces[1] + "private int hash;");
+
+        writer.println(spaces[0] + "}");
+    }
+
+    private static boolean hashes(String baseName) {
+        return hashCons && baseName.equals("Expr");
+    }
+
+    private static void defineHashHelpers(PrintWriter writer, String baseName) {
+        String node = baseName;
+        writer.println(spaces(2) + "private static int hashOf(" + node + " node) {");
+        writer.println(spaces(4) + "return node == null ? 0 : node.structuralHash();");
+        writer.println(spaces(2) + "}");
+        writer.println();
+        writer.println(spaces(2) + "private static int hashOf(List<? extends " + node + "> nodes) {");
+        writer.println(spaces(4) + "int hash = 1;");
+        writer.println(spaces(4) + "for (" + node + " node : nodes) {");
+        writer.println(spaces(6) + "hash = 31 * hash + hashOf(node);");
+        writer.println(spaces(4) + "}");
+        writer.println(spaces(4) + "return hash;");
+        writer.println(spaces(2) + "}");
+        writer.println();
+        writer.println(spaces(2) + "private static boolean same(List<? extends " + node + "> a, List<? extends " + node
+                + "> b) {");
+        writer.println(spaces(4) + "if (a.size() != b.size())");
+        writer.println(spaces(6) + "return false;");
+        writer.println(spaces(4) + "for (int i = 0; i < a.size(); i++) {");
+        writer.println(spaces(6) + "if (a.get(i) != b.get(i))");
+        writer.println(spaces(8) + "return false;");
+        writer.println(spaces(4) + "}");
+        writer.println(spaces(4) + "return true;");
+        writer.println(spaces(2) + "}");
+        writer.println();
+    }
+
+    private static void defineHashing(PrintWriter writer, String baseName, String className, String[] fields) {
+        String[] spaces = { spaces(2), spaces(4), spaces(6), spaces(8), spaces(10) };
+
+        writer.println();
+        writer.println(spaces[1] + "@Override");
+        writer.println(spaces[1] + "public int structuralHash() {");
+        writer.println(spaces[2] + "if (hash == 0) {");
+        writer.println(spaces[3] + "int h = " + constantOf(className) + ";");
+        for (String field : fields) {
+            String type = field.split(" ")[0];
+            String name = field.split(" ")[1];
+            if (name.equals("at"))
+                continue;
+            String part;
+            if (type.equals(baseName) || type.startsWith(baseName + ".") || type.startsWith("List<" + baseName)) {
+                part = "hashOf(" + name + ")";
+            } else if (type.equals("int")) {
+                part = name;
+            } else if (type.equals("TokenType")) {
+                // ordinals, unlike enums' hash codes, are the same on every run
+                part = "(" + name + " == null ? 0 : " + name + ".ordinal())";
+            } else {
+                part = "Objects.hashCode(" + name + ")";
+            }
+            writer.println(spaces[3] + "h = 31 * h + " + part + ";");
+        }
+        writer.println(spaces[3] + "hash = h == 0 ? 1 : h;");
+        writer.println(spaces[2] + "}");
+        writer.println(spaces[2] + "return hash;");
+        writer.println(spaces[1] + "}");
+
+        writer.println();
+        writer.println(spaces[1] + "@Override");
+        writer.println(spaces[1] + "public boolean sameAs(" + baseName + " other) {");
+        writer.println(spaces[2] + "if (!(other instanceof " + className + "))");
+        writer.println(spaces[3] + "return false;");
+        StringBuilder same = new StringBuilder();
+        for (String field : fields) {
+            String type = field.split(" ")[0];
+            String name = field.split(" ")[1];
+            if (name.equals("at"))
+                continue;
+            if (same.length() > 0)
+                same.append("\n").append(spaces[4]).append("&& ");
+            if (type.startsWith("List<" + baseName)) {
+                same.append("same(" + name + ", that." + name + ")");
+            } else if (type.equals(baseName) || type.startsWith(baseName + ".") || type.equals("int")
+                    || type.equals("TokenType")) {
+                same.append(name + " == that." + name);
+            } else {
+                same.append("Objects.equals(" + name + ", that." + name + ")");
+            }
+        }
+        if (same.length() == 0) {
+            writer.println(spaces[2] + "return true;");
+        } else {
+            writer.println(spaces[2] + className + " that = (" + className + ") other;");
+            writer.println(spaces[2] + "return " + same + ";");
+        }
+        writer.println(spaces[1] + "}");
+    }
+
+    // the kinds of node a node of `baseName` can have as children
+    private static List<String> childKinds(String baseName) {
+        return baseName.equals("Stmt") ? Arrays.asList("Expr", "Stmt") : Arrays.asList("Expr");
+    }
+
+    // `Variable` -> `VARIABLE`
+    private static String constantOf(String className) {
+        return className.toUpperCase();
+    }
+
     private static void defineVisitor(PrintWriter writer, String baseName, List<String> types) {
         writer.println(spaces(2) + "interface Visitor<R> {");
 
-        for (String type : types) {
-            String typeName = type.split(":")[0].trim();
+        for (int i = 0; i < types.size(); i++) {
+            if (i > 0)
+                writer.println();
+            String typeName = types.get(i).split(":")[0].trim();
             writer.println(spaces(4) + "R visit" + typeName + baseName + "(" + typeName + spaces(1)
                     + baseName.toLowerCase() + ");");
         }
@@ -1,188 +1,283 @@
 package wox;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 
-public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
-    String print(Expr expr) {
-        return expr.accept(this);
+/**
+ * Writes trees out as s-expressions, streaming into an `Appendable`. Visiting
+ * a node does not recurse into its children but pushes them onto an explicit
+ * stack of work, so printing takes time linear in the size of the tree and
+ * never overflows the call stack, however deeply the tree is nested.
+ *
+ * With a non-zero `indent`, every nested node starts on a line of its own,
+ * indented by its depth. Output stops with `...` once `limit` characters
+ * have been written.
+ */
+public class AstPrinter implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // ends the innermost open node
+    private static final Object CLOSE = new Object();
+
+    private static class Open {
+        final String name;
+
+        Open(String name) {
+            this.name = name;
+        }
     }
 
-    String print(Stmt stmt) {
-        return stmt.accept(this);
-    }
+    private final int indent;
+    private final long limit;
+    private final Deque<Object> work = new ArrayDeque<>();
+    private Appendable out;
+    private long written;
+    private int depth;
+    private boolean atStart;
 
-    private String parenthesize(String name, Expr... exprs) {
-        StringBuilder builder = new StringBuilder();
+    AstPrinter() {
+        this(0, Long.MAX_VALUE);
+    }
 
-        builder.append("(").append(name);
-        for (Expr expr : exprs) {
-            builder.append(" ");
-            builder.append(expr.accept(this));
-        }
-        builder.append(")");
+    AstPrinter(int indent, long limit) {
+        this.indent = indent;
+        this.limit = limit;
+    }
 
+    String print(Expr expr) {
+        StringBuilder builder = new StringBuilder();
+        print(expr, builder);
         return builder.toString();
     }
 
-    private String parenthesize(String name, Token token, Expr... exprs) {
+    String print(Stmt stmt) {
         StringBuilder builder = new StringBuilder();
+        print(stmt, builder);
+        return builder.toString();
+    }
+
+    void print(Expr expr, Appendable out) {
+        written = 0;
+        run(expr, out);
+    }
 
-        builder.append("(").append(name).append(" (pat ").append(token.text).append(")");
+    void print(Stmt stmt, Appendable out) {
+        written = 0;
+        run(stmt, out);
+    }
 
-        for (Expr expr : exprs) {
-            builder.append(" ");
-            builder.append(expr.accept(this));
+    // one statement per line
+    void print(List<Stmt> stmts, Appendable out) {
+        written = 0;
+        for (Stmt stmt : stmts) {
+            if (!run(stmt, out))
+                return;
+            write("\n");
         }
-        builder.append(")");
+    }
 
-        return builder.toString();
+    // returns whether the whole tree fit within the limit
+    private boolean run(Object root, Appendable out) {
+        this.out = out;
+        depth = 0;
+        atStart = true;
+        work.clear();
+        push(root);
+
+        while (!work.isEmpty()) {
+            if (written >= limit) {
+                write("...");
+                work.clear();
+                return false;
+            }
+
+            Object item = work.pop();
+            if (item instanceof Expr) {
+                ((Expr) item).accept(this);
+            } else if (item instanceof Stmt) {
+                ((Stmt) item).accept(this);
+            } else if (item == CLOSE) {
+                depth--;
+                write(")");
+            } else if (item instanceof Open) {
+                separate(true);
+                write("(");
+                write(((Open) item).name);
+                depth++;
+            } else {
+                separate(false);
+                write(item.toString());
+            }
+        }
+        return true;
     }
 
-    private String parenthesize(String name, Expr head, List<Expr> list) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("(").append(name).append(" ").append(head.accept(this));
-        for (Expr expr : list) {
-            builder.append(" ");
-            builder.append(expr.accept(this));
+    private void separate(boolean opens) {
+        if (atStart) {
+            atStart = false;
+        } else if (opens && indent > 0) {
+            write("\n");
+            for (int i = 0; i < depth * indent; i++) {
+                write(" ");
+            }
+        } else {
+            write(" ");
         }
-        builder.append(")");
-        return builder.toString();
     }
 
-    private String parenthesize(String name, List<Expr> list) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("(").append(name);
-        for (Expr expr : list) {
-            builder.append(" ");
-            builder.append(expr.accept(this));
+    private void write(String text) {
+        try {
+            out.append(text);
+        } catch (IOException error) {
+            throw new UncheckedIOException(error);
         }
-        builder.append(")");
-        return builder.toString();
+        written += text.length();
     }
 
-    private String parenthesized(String name, Object... objects) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("(").append(name);
-        transform(builder, objects);
-        builder.append(")");
-        return builder.toString();
+    // schedules `(name children...)`, pushing everything in reverse so that
+    // it is popped in order
+    private void node(String name, Object... children) {
+        work.push(CLOSE);
+        for (int i = children.length - 1; i >= 0; i--) {
+            push(children[i]);
+        }
+        work.push(new Open(name));
     }
 
-    private void transform(StringBuilder builder, Object... parts) {
-        for (Object part : parts) {
-            builder.append(" ");
-            if (part instanceof Expr) {
-                builder.append(((Expr) part).accept(this));
-            } else if (part instanceof Stmt) {
-                builder.append(((Stmt) part).accept(this));
-            } else if (part instanceof Token) {
-                builder.append(((Token) part).text);
-            } else if (part instanceof List) {
-                transform(builder, ((List) part).toArray());
-            } else {
-                builder.append(part);
+    private void push(Object part) {
+        if (part == null) {
+            work.push("nil");
+        } else if (part instanceof List) {
+            List<?> list = (List<?>) part;
+            for (int i = list.size() - 1; i >= 0; i--) {
+                push(list.get(i));
             }
+        } else {
+            work.push(part);
         }
     }
 
+    // `(pat name)`, for identifiers being bound or assigned
+    private List<Object> pattern(String name) {
+        return List.of(new Open("pat"), name, CLOSE);
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        node(expr.operator.stringify(), expr.left, expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        node(expr.operator.stringify(), expr.right);
+        return null;
+    }
+
     @Override
-    public String visitBinaryExpr(Expr.Binary expr) {
-        return parenthesize(expr.operator.text, expr.left, expr.right);
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        node("grouping", expr.expression);
+        return null;
     }
 
     @Override
-    public String visitUnaryExpr(Expr.Unary expr) {
-        return parenthesize(expr.operator.text, expr.right);
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        work.push(expr.value == null ? "nil" : expr.value);
+        return null;
     }
 
     @Override
-    public String visitGroupingExpr(Expr.Grouping expr) {
-        return parenthesize("grouping", expr.expression);
+    public Void visitLetExpr(Expr.Let expr) {
+        node("let", pattern(expr.variable), expr.definition, expr.body);
+        return null;
     }
 
     @Override
-    public String visitLiteralExpr(Expr.Literal expr) {
-        if (expr.value == null)
-            return "nil";
-        return expr.value.toString();
+    public Void visitAssignExpr(Expr.Assign expr) {
+        node("assign", pattern(expr.name), expr.value);
+        return null;
     }
 
     @Override
-    public String visitLetExpr(Expr.Let expr) {
-        return parenthesize("let", expr.variable, expr.definition, expr.body);
+    public Void visitCallExpr(Expr.Call expr) {
+        node("call", expr.callee, expr.arguments);
+        return null;
     }
 
     @Override
-    public String visitAssignExpr(Expr.Assign expr) {
-        return parenthesize("assign", expr.name, expr.value);
+    public Void visitGetExpr(Expr.Get expr) {
+        node("get", expr.object, expr.name);
+        return null;
     }
 
     @Override
-    public String visitCallExpr(Expr.Call expr) {
-        return parenthesize("call", expr.callee, expr.arguments);
+    public Void visitIfExpr(Expr.If expr) {
+        node("if", expr.condition, expr.when_true, expr.when_false);
+        return null;
     }
 
     @Override
-    public String visitGetExpr(Expr.Get expr) {
-        return new StringBuilder()
-                .append("get")
-                .append(" ")
-                .append(expr.object.accept(this))
-                .append(" ")
-                .append(expr.name).toString();
+    public Void visitInlineExpr(Expr.Inline expr) {
+        node("inline", expr.callee, expr.body);
+        return null;
     }
 
     @Override
-    public String visitIfExpr(Expr.If expr) {
-        return parenthesize("if", expr.condition, expr.when_true, expr.when_false);
+    public Void visitMemoExpr(Expr.Memo expr) {
+        node("memo", expr.slot, expr.expression);
+        return null;
     }
 
     @Override
-    public String visitSetExpr(Expr.Set expr) {
-        return parenthesize("set", expr.name, expr.object, expr.value);
+    public Void visitSetExpr(Expr.Set expr) {
+        node("set", pattern(expr.name), expr.object, expr.value);
+        return null;
     }
 
     @Override
-    public String visitSuperExpr(Expr.Super expr) {
-        return new StringBuilder()
-                .append("(")
-                .append("super ")
-                .append(expr.method)
-                .append(")").toString();
+    public Void visitSuperExpr(Expr.Super expr) {
+        node("super", expr.method);
+        return null;
     }
 
     @Override
-    public String visitThisExpr(Expr.This expr) {
-        return "this";
+    public Void visitThisExpr(Expr.This expr) {
+        work.push("this");
+        return null;
     }
 
     @Override
-    public String visitTupleExpr(Expr.Tuple tuple) {
-        return parenthesize("tuple", tuple.elements);
+    public Void visitTupleExpr(Expr.Tuple tuple) {
+        node("tuple", tuple.elements);
+        return null;
     }
 
     @Override
-    public String visitVariableExpr(Expr.Variable expr) {
-        return parenthesize("variable", expr.name);
+    public Void visitVariableExpr(Expr.Variable expr) {
+        node("variable", pattern(expr.name));
+        return null;
     }
 
     @Override
-    public String visitVectorExpr(Expr.Vector expr) {
-        return parenthesize("vector", expr.elements);
+    public Void visitVectorExpr(Expr.Vector expr) {
+        node("vector", expr.elements);
+        return null;
     }
 
     @Override
-    public String visitDoExpr(Expr.Do expr) {
-        return parenthesize("do", expr.body);
+    public Void visitDoExpr(Expr.Do expr) {
+        node("do", expr.body);
+        return null;
     }
 
     public static void main(String[] args) {
         // (-123)*(45.67)
         Expr expression = new Expr.Binary(
                 new Expr.Unary(
-                        new Token(TokenType.MINUS, "-", null, 1, 1),
+                        TokenType.MINUS, 0,
                         new Expr.Literal(123)),
-                new Token(TokenType.STAR, "*", null, 1, 5),
+                TokenType.STAR, 0,
                 new Expr.Grouping(
                         new Expr.Literal(45.67)));
 
@@ -190,91 +285,70 @@ public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
     }
 
     @Override
-    public String visitBlockStmt(Stmt.Block stmt) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("(block ");
-
-        for (Stmt statement : stmt.statements) {
-            builder.append(statement.accept(this));
-        }
-
-        builder.append(")");
-        return builder.toString();
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        node("block", stmt.statements);
+        return null;
     }
 
     @Override
-    public String visitClassStmt(Stmt.Class stmt) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("(class " + stmt.name.text);
-        // > Inheritance omit
-
+    public Void visitClassStmt(Stmt.Class stmt) {
         if (stmt.superclass != null) {
-            builder.append(" < " + print(stmt.superclass));
-        }
-        // < Inheritance omit
-
-        for (Stmt.Function method : stmt.methods) {
-            builder.append(" " + print(method));
+            node("class", stmt.name, "<", stmt.superclass, stmt.methods);
+        } else {
+            node("class", stmt.name, stmt.methods);
         }
-
-        builder.append(")");
-        return builder.toString();
+        return null;
     }
 
     @Override
-    public String visitExpressionStmt(Stmt.Expression stmt) {
-        return parenthesize(";", stmt.expression);
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        node(";", stmt.expression);
+        return null;
     }
 
     @Override
-    public String visitFunctionStmt(Stmt.Function stmt) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("(fun " + stmt.name.text + "(");
-
-        for (Token param : stmt.params) {
-            if (param != stmt.params.get(0))
-                builder.append(" ");
-            builder.append(param.text);
-        }
-
-        builder.append(") ");
-
-        for (Stmt body : stmt.body) {
-            builder.append(body.accept(this));
-        }
-
-        builder.append(")");
-        return builder.toString();
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        String params = "(" + String.join(" ", stmt.params) + ")";
+        // printing should not be what makes a lazy body parse
+        node("fun", stmt.name, params, Rewriter.isUnparsed(stmt) ? "{...}" : stmt.body);
+        return null;
     }
 
     @Override
-    public String visitPrintStmt(Stmt.Print stmt) {
-        return parenthesize("print", stmt.expression);
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        node("print", stmt.expression);
+        return null;
     }
 
     @Override
-    public String visitReturnStmt(Stmt.Return stmt) {
-        if (stmt.value == null)
-            return "(return)";
-        return parenthesize("return", stmt.value);
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            node("return");
+        } else {
+            node("return", stmt.value);
+        }
+        return null;
     }
 
     @Override
-    public String visitVarStmt(Stmt.Var stmt) {
+    public Void visitVarStmt(Stmt.Var stmt) {
         if (stmt.initializer == null) {
-            return parenthesized("var", stmt.name);
+            node("var", stmt.name);
+        } else {
+            node("var", stmt.name, "=", stmt.initializer);
         }
-
-        return parenthesized("var", stmt.name, "=", stmt.initializer);
+        return null;
     }
 
     @Override
-    public String visitLoopStmt(Stmt.Loop stmt) {
-        return parenthesized("loop", stmt.statements);
+    public Void visitLoopStmt(Stmt.Loop stmt) {
+        node("loop", stmt.statements);
+        return null;
     }
 
     @Override
-    public String visitWhileStmt(Stmt.While stmt) {
-        return parenthesized("while", stmt.condition, stmt.body);
+    public Void visitWhileStmt(Stmt.While stmt) {
+        node("while", stmt.condition, stmt.body);
+        return null;
     }
 }
@@ -0,0 +1,47 @@
+package wox;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Stops a program from outside, along with the tasks it spawned. Once it is
+ * cancelled, every interpreter of the program throws `Cancelled` at its next
+ * call or turn of a loop, and those of its threads waiting in `recv`, `send`
+ * or `join` are interrupted. A cancelled program stays cancelled.
+ */
+class Cancellation {
+    private volatile boolean cancelled = false;
+    // running the program or one of its tasks right now
+    private final Set<Thread> threads = new HashSet<>();
+
+    @SuppressWarnings("serial")
+    static class Cancelled extends RuntimeException {
+        Cancelled() {
+            super("The program was cancelled.", null, false, false);
+        }
+    }
+
+    synchronized void cancel() {
+        cancelled = true;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+    }
+
+    // at every call and turn of a loop
+    void check() {
+        if (cancelled)
+            throw new Cancelled();
+    }
+
+    // around whatever runs the program on the current thread
+    synchronized void enter() {
+        threads.add(Thread.currentThread());
+    }
+
+    synchronized void exit() {
+        threads.remove(Thread.currentThread());
+        // the thread may go on to other work, which was not cancelled
+        Thread.interrupted();
+    }
+}
@@ -0,0 +1,83 @@
+package wox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import jdk.net.ExtendedSocketOptions;
+
+/**
+ * Runs a script on a running `Server`, with `java wox.Client script [socket]`,
+ * printing what it prints and exiting as `jwox script` would have. Nothing of
+ * the interpreter is loaded, so that this starts as quickly as a JVM can.
+ *
+ * Scripts are only sent to a socket, and a server, of the user's own, lest
+ * someone else read them and answer in the server's stead.
+ */
+public class Client {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java wox.Client script [socket]");
+            // exit using relevant error code from UNIX "sysexits.h" header
+            System.exit(64);
+        }
+        byte[] script = Files.readAllBytes(Paths.get(args[0]));
+        Path socket = args.length == 2 ? Paths.get(args[1]) : Server.defaultSocket();
+
+        SocketChannel server;
+        try {
+            if (!Server.isUs(Files.getOwner(socket, LinkOption.NOFOLLOW_LINKS)))
+                refuse(socket);
+            server = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException error) {
+            System.err.println("No server is listening on " + socket + ", start one with `jwox --server`.");
+            System.exit(69);
+            return;
+        }
+        try (server) {
+            // the socket may have been replaced since
+            if (!Server.isUs(server.getOption(ExtendedSocketOptions.SO_PEERCRED).user()))
+                refuse(socket);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(server)));
+            out.writeInt(script.length);
+            out.write(script);
+            out.flush();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(server)));
+            System.exit(receive(in, System.out, System.err));
+        } catch (IOException error) {
+            System.err.println("Lost the server on " + socket + ": " + error);
+            System.exit(69);
+        }
+    }
+
+    private static void refuse(Path socket) {
+        System.err.println("The server on " + socket + " is not yours, so it gets no script.");
+        // exit using relevant error code from UNIX "sysexits.h" header
+        System.exit(77);
+    }
+
+    // copies the frames of a run to `stdout` and `stderr` as they come, and
+    // returns the code it exited with
+    private static int receive(DataInputStream in, OutputStream stdout, OutputStream stderr) throws IOException {
+        for (;;) {
+            byte kind = in.readByte();
+            if (kind == Server.EXIT)
+                return in.readInt();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            OutputStream sink = kind == Server.STDOUT ? stdout : stderr;
+            sink.write(bytes);
+            sink.flush();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package wox;
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * An interpreter of its own, with its own globals, output and errors, so that
+ * any number of programs can be run side by side in one JVM. Contexts share
+ * nothing mutable but the positions handed out by `Source`, which are
+ * synchronized, so separate contexts may be used on separate threads at the
+ * same time. A single context runs one program at a time.
+ *
+ * Errors are written to `errors` as they are found, and remembered until
+ * `clearErrors`. Closing a context gives back the positions of everything it
+ * parsed, after which none of its functions should be called anymore.
+ */
+public class Context implements AutoCloseable {
+    private final Interpreter interpreter;
+    private final Globals globals = new Globals();
+    private final Output output;
+    private final Reporter.Printer errors;
+    private final List<Source> sources = new ArrayList<>();
+    // the last snapshot of the globals, and what the host got of it
+    private volatile Snapshot snapshot;
+
+    public Context(Writer out, Appendable errors) {
+        this(new Output(out, Output.DEFAULT_CAPACITY), errors);
+    }
+
+    Context(Output output, Appendable errors) {
+        this.output = output;
+        this.errors = new Reporter.Printer(errors);
+        this.interpreter = new Interpreter(output, this.errors, globals);
+    }
+
+    // scripts parse function bodies lazily, but at the prompt syntax errors
+    // should be reported right away
+    public void run(String source, boolean lazy) {
+        Source file = new Source(source);
+        sources.add(file);
+        List<Stmt> stmts = new ParallelParser(source, lazy, errors, ForkJoinPool.commonPool()).parse(file);
+
+        if (errors.hadError)
+            return;
+
+        interpreter.cancellation.enter();
+        try {
+            interpreter.interpret(optimize(stmts));
+        } finally {
+            interpreter.cancellation.exit();
+        }
+    }
+
+    // stops the program running, and whatever it spawned, from any thread,
+    // with `run` throwing a `Cancellation.Cancelled`; the context runs
+    // nothing anymore after that
+    public void cancel() {
+        interpreter.cancellation.cancel();
+    }
+
+    static List<Stmt> optimize(List<Stmt> stmts) {
+        stmts = new Inliner().inline(stmts);
+        stmts = new Optimizer().optimize(stmts);
+        return new Memoizer().memoize(stmts);
+    }
+
+    // hands whatever was printed to the writer
+    public void flush() {
+        output.flush();
+    }
+
+    public boolean hadError() {
+        return errors.hadError;
+    }
+
+    public boolean hadRuntimeError() {
+        return errors.hadRuntimeError;
+    }
+
+    public void clearErrors() {
+        errors.hadError = false;
+        errors.hadRuntimeError = false;
+    }
+
+    public void define(Natives natives) {
+        natives.define(interpreter.globals);
+    }
+
+    // the globals as they are now, which stay as they are, see `Globals`,
+    // without the memo slots the optimizer declares among them
+    public Map<String, Object> snapshot() {
+        Map<String, Object> all = globals.snapshot();
+        Snapshot last = snapshot;
+        if (last != null && last.all == all)
+            return last.visible;
+        Map<String, Object> visible = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> global : all.entrySet()) {
+            if (!Memoizer.isSlot(global.getKey()))
+                visible.put(global.getKey(), global.getValue());
+        }
+        last = new Snapshot(all, Collections.unmodifiableMap(visible));
+        snapshot = last;
+        return last.visible;
+    }
+
+    private static class Snapshot {
+        final Map<String, Object> all;
+        final Map<String, Object> visible;
+
+        Snapshot(Map<String, Object> all, Map<String, Object> visible) {
+            this.all = all;
+            this.visible = visible;
+        }
+    }
+
+    // where syntax errors go, for parsing outside of `run`
+    Reporter reporter() {
+        return errors;
+    }
+
+    Environment globals() {
+        return interpreter.globals;
+    }
+
+    @Override
+    public void close() {
+        flush();
+        for (Source source : sources) {
+            source.release();
+        }
+        sources.clear();
+    }
+}
@@ -0,0 +1,309 @@
+package wox;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A source that is edited over time, e.g., in an editor, together with its
+ * tokens and top-level statements. After an edit only the damaged region is
+ * lexed again, and only the top-level declarations overlapping it are parsed
+ * again. All other tokens and subtrees are reused as they are.
+ *
+ * The program is kept as a list of segments, one per top-level declaration,
+ * each covering the source from its first token up to the next segment. An
+ * edit is re-lexed from the start of the segment it falls into, until the
+ * lexer lands on the start of a segment past the edited lines. Declarations
+ * are then re-parsed from there until one ends exactly where an old segment
+ * starts, taking over any segment a declaration runs into on the way. The
+ * segments after that only move, which is done by moving the `Token.Origin`
+ * their tokens are anchored to.
+ */
+class Document {
+    private String source = "";
+    private final List<Segment> segments = new ArrayList<>();
+    private Token.Origin eofOrigin;
+    private Token eof = anchored(new Token(TokenType.EOF, "", null, 1, 1, 0));
+    // whether the lexer failed before the first declaration, where no
+    // segment covers the source
+    private boolean leadingError = false;
+    private final Reporter reporter;
+
+    Document(String source) {
+        this(source, Wox.reporter);
+    }
+
+    Document(String source, Reporter reporter) {
+        this.reporter = reporter;
+        edit(0, 0, source);
+    }
+
+    private static class Segment {
+        // where the segment starts, and what its tokens are anchored to
+        final Token.Origin origin;
+        final List<Token> tokens;
+        final Stmt stmt;
+        // the positions of `stmt`'s nodes, which move along with `origin`
+        final Source positions;
+        boolean failed;
+
+        Segment(Token.Origin origin, List<Token> tokens, Stmt stmt, Source positions, boolean failed) {
+            this.origin = origin;
+            this.tokens = tokens;
+            this.stmt = stmt;
+            this.positions = positions;
+            this.failed = failed;
+        }
+    }
+
+    String source() {
+        return source;
+    }
+
+    // the top-level statements as of the last edit, with `null` for
+    // declarations that failed to parse
+    List<Stmt> stmts() {
+        List<Stmt> stmts = new ArrayList<>(segments.size());
+        for (Segment segment : segments) {
+            stmts.add(segment.stmt);
+        }
+        return stmts;
+    }
+
+    List<Token> tokens() {
+        List<Token> tokens = new ArrayList<>();
+        for (Segment segment : segments) {
+            tokens.addAll(segment.tokens);
+        }
+        tokens.add(eof);
+        return tokens;
+    }
+
+    boolean hadError() {
+        if (leadingError)
+            return true;
+        for (Segment segment : segments) {
+            if (segment.failed)
+                return true;
+        }
+        return false;
+    }
+
+    // replaces the whole source, editing only the part that differs
+    void update(String text) {
+        int prefix = 0;
+        int limit = Math.min(source.length(), text.length());
+        while (prefix < limit && source.charAt(prefix) == text.charAt(prefix))
+            prefix++;
+        int suffix = 0;
+        limit -= prefix;
+        while (suffix < limit
+                && source.charAt(source.length() - 1 - suffix) == text.charAt(text.length() - 1 - suffix))
+            suffix++;
+        if (prefix == text.length() && prefix == source.length())
+            return;
+        edit(prefix, source.length() - prefix - suffix, text.substring(prefix, text.length() - suffix));
+    }
+
+    // replaces `removed` characters at `offset` with `inserted`
+    void edit(int offset, int removed, String inserted) {
+        if (offset < 0 || removed < 0 || offset + removed > source.length())
+            throw new IndexOutOfBoundsException(
+                    "cannot replace " + removed + " characters at " + offset + " of " + source.length());
+
+        String old = source;
+        source = old.substring(0, offset) + inserted + old.substring(offset + removed);
+        int delta = inserted.length() - removed;
+        int lines = newlines(inserted, 0, inserted.length()) - newlines(old, offset, offset + removed);
+
+        // segments starting after the last edited line keep their tokens,
+        // columns included, and only move
+        int end = old.indexOf('\n', offset + removed);
+        int next = end < 0 ? segments.size() : after(end);
+        for (int i = next; i < segments.size(); i++) {
+            move(segments.get(i).origin, delta, lines);
+        }
+        move(eofOrigin, delta, lines);
+
+        // a token ending right before the edit may continue into it
+        int first = before(offset - 1);
+        // the declaration before looked ahead at this one's first token
+        if (first > 0 && offset <= segments.get(first).origin.offset + segments.get(first).tokens.get(0).text.length())
+            first--;
+        int from = first == 0 ? 0 : segments.get(first).origin.offset;
+        int line = first == 0 ? 1 : segments.get(first).origin.line;
+
+        Lexer lexer = new Lexer(source, from, line, reporter);
+        List<Token> fresh = lexer.lexUntil(at -> startingAt(at, next) >= 0);
+        int resume = startingAt(lexer.position(), next);
+        if (resume < 0) {
+            resume = segments.size();
+            eof = anchored(lexer.eof());
+        }
+
+        Tokens tokens = new Tokens(fresh, resume);
+        // no sharing, as a node shared between segments would outlive the
+        // positions of the one it came from
+        Parser parser = new Parser(tokens, null, false, reporter, null);
+        List<Segment> parsed = new ArrayList<>();
+        int taken = resume;
+        // where segment `taken` starts within `tokens`
+        int limit = fresh.size();
+        int position = 0;
+        while (position < limit) {
+            Token head = tokens.get(position);
+            Token.Origin origin = parsed.isEmpty()
+                    ? new Token.Origin(line, from)
+                    : new Token.Origin(head.line(), head.offset());
+            // the declaration's extent is only known once it is parsed
+            Source positions = new Source(() -> source, origin, source.length() - origin.offset);
+
+            parser.failed = false;
+            Stmt stmt = parser.declaration(position, positions);
+            int stop = parser.position();
+            // a declaration running into an old segment takes it over
+            while (stop > limit && taken < segments.size()) {
+                limit += segments.get(taken++).tokens.size();
+            }
+
+            Token last = tokens.get(stop - 1);
+            positions.trim(last.offset() + last.text.length() - origin.offset);
+            List<Token> own = new ArrayList<>(tokens.subList(position, stop));
+            for (Token token : own) {
+                token.anchor(origin);
+            }
+            parsed.add(new Segment(origin, own, stmt, positions, parser.failed));
+            position = stop;
+        }
+
+        // re-lexed from the start, so whatever failed there is known anew
+        if (first == 0)
+            leadingError = false;
+        for (int error : lexer.errors) {
+            int i = parsed.size() - 1;
+            while (i >= 0 && parsed.get(i).origin.offset > error) {
+                i--;
+            }
+            if (i >= 0) {
+                parsed.get(i).failed = true;
+            } else if (first > 0) {
+                // no declaration was lexed, so it is in the segment before,
+                // which runs on up to the next one
+                segments.get(first - 1).failed = true;
+            } else {
+                leadingError = true;
+            }
+        }
+
+        for (Segment segment : segments.subList(first, taken)) {
+            segment.positions.release();
+        }
+        segments.subList(first, taken).clear();
+        segments.addAll(first, parsed);
+    }
+
+    private Token anchored(Token token) {
+        eofOrigin = new Token.Origin(token.line(), token.offset());
+        token.anchor(eofOrigin);
+        return token;
+    }
+
+    private static void move(Token.Origin origin, int delta, int lines) {
+        origin.offset += delta;
+        origin.line += lines;
+    }
+
+    private static int newlines(String text, int from, int to) {
+        int count = 0;
+        for (int i = text.indexOf('\n', from); i >= 0 && i < to; i = text.indexOf('\n', i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    // index of the last segment starting at or before `offset`, or 0
+    private int before(int offset) {
+        int low = 0;
+        int high = segments.size() - 1;
+        int found = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (segments.get(mid).origin.offset <= offset) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    // index of the first segment starting after `offset`
+    private int after(int offset) {
+        int low = 0;
+        int high = segments.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (segments.get(mid).origin.offset <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // index of the segment from `from` on that starts exactly at `offset`,
+    // or -1
+    private int startingAt(int offset, int from) {
+        int index = Math.max(after(offset - 1), from);
+        if (index < segments.size() && segments.get(index).origin.offset == offset)
+            return index;
+        return -1;
+    }
+
+    /**
+     * The freshly lexed tokens followed by those of the old segments from
+     * `resume` on, and `EOF`, as the parser sees them. Tokens are looked up
+     * through a cursor, since the parser mostly moves forward.
+     */
+    private class Tokens extends AbstractList<Token> {
+        private final List<Token> fresh;
+        private final int resume;
+        private int segment;
+        private int base;
+
+        Tokens(List<Token> fresh, int resume) {
+            this.fresh = fresh;
+            this.resume = resume;
+            this.segment = resume;
+            this.base = fresh.size();
+        }
+
+        @Override
+        public Token get(int index) {
+            if (index < fresh.size())
+                return fresh.get(index);
+            if (index < base) {
+                segment = resume;
+                base = fresh.size();
+            }
+            while (segment < segments.size() && index >= base + segments.get(segment).tokens.size()) {
+                base += segments.get(segment).tokens.size();
+                segment++;
+            }
+            if (segment == segments.size())
+                return eof;
+            return segments.get(segment).tokens.get(index - base);
+        }
+
+        @Override
+        public int size() {
+            int size = fresh.size() + 1;
+            for (int i = resume; i < segments.size(); i++) {
+                size += segments.get(i).tokens.size();
+            }
+            return size;
+        }
+    }
+}
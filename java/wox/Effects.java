@@ -0,0 +1,211 @@
+package wox;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Summary of what evaluating a subtree may observe and change: the variables
+ * and fields it reads, the names it assigns or binds, and whether it calls
+ * out to code that could do anything at all.
+ *
+ * Declarations (`var`, `let`, `fn`, `class`) count as writes to the declared
+ * name, since they change what later references to that name resolve to. The
+ * bodies of nested function declarations are not part of the summary, as they
+ * only run when called, and calls are already assumed to write everything.
+ */
+class Effects {
+    final Set<String> reads = new HashSet<>();
+    final Set<String> fieldReads = new HashSet<>();
+    final Set<String> writes = new HashSet<>();
+    final Set<String> fieldWrites = new HashSet<>();
+    boolean calls = false;
+    // builds a fresh tuple or vector, whose identity must not be shared
+    boolean allocates = false;
+    boolean prints = false;
+    int size = 0;
+
+    // free of side effects, so evaluating it twice (or once instead of
+    // twice) cannot be observed
+    boolean isPure() {
+        return !calls && !allocates && !prints && writes.isEmpty() && fieldWrites.isEmpty();
+    }
+
+    // evaluating an expression with these effects may give a different
+    // result after running code with the `other` effects
+    boolean dependsOn(Effects other) {
+        if (other.calls)
+            return true;
+        for (String name : reads) {
+            if (other.writes.contains(name))
+                return true;
+        }
+        for (String name : fieldReads) {
+            if (other.fieldWrites.contains(name))
+                return true;
+        }
+        return false;
+    }
+
+    void add(Effects other) {
+        reads.addAll(other.reads);
+        fieldReads.addAll(other.fieldReads);
+        writes.addAll(other.writes);
+        fieldWrites.addAll(other.fieldWrites);
+        calls |= other.calls;
+        allocates |= other.allocates;
+        prints |= other.prints;
+        size += other.size;
+    }
+
+    static Effects of(Expr expr) {
+        return new Analysis().of(expr);
+    }
+
+    static Effects of(Stmt stmt) {
+        Analysis analysis = new Analysis();
+        analysis.rewrite(stmt);
+        return analysis.current;
+    }
+
+    static Effects of(List<Stmt> stmts) {
+        Analysis analysis = new Analysis();
+        analysis.rewriteStmts(stmts);
+        return analysis.current;
+    }
+
+    /**
+     * Computes effects bottom-up, remembering the summary of every expression
+     * it passes so that querying subexpressions afterwards is free.
+     */
+    static class Analysis extends Rewriter {
+        private final Map<Expr, Effects> cache = new IdentityHashMap<>();
+        private Effects current = new Effects();
+
+        Effects of(Expr expr) {
+            if (!cache.containsKey(expr)) {
+                Effects outer = current;
+                current = new Effects();
+                try {
+                    rewrite(expr);
+                } finally {
+                    current = outer;
+                }
+            }
+            return cache.get(expr);
+        }
+
+        @Override
+        Expr rewrite(Expr expr) {
+            if (expr == null)
+                return null;
+            Effects effects = cache.get(expr);
+            if (effects == null) {
+                Effects outer = current;
+                current = new Effects();
+                try {
+                    expr.accept(this);
+                    current.size++;
+                    effects = current;
+                    cache.put(expr, effects);
+                } finally {
+                    current = outer;
+                }
+            }
+            current.add(effects);
+            return expr;
+        }
+
+        @Override
+        public Stmt visitClassStmt(Stmt.Class stmt) {
+            current.writes.add(stmt.name);
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitFunctionStmt(Stmt.Function stmt) {
+            current.writes.add(stmt.name);
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitPrintStmt(Stmt.Print stmt) {
+            current.prints = true;
+            return super.visitPrintStmt(stmt);
+        }
+
+        @Override
+        public Stmt visitVarStmt(Stmt.Var stmt) {
+            current.writes.add(stmt.name);
+            return super.visitVarStmt(stmt);
+        }
+
+        @Override
+        public Expr visitAssignExpr(Expr.Assign expr) {
+            current.writes.add(expr.name);
+            return super.visitAssignExpr(expr);
+        }
+
+        @Override
+        public Expr visitCallExpr(Expr.Call expr) {
+            current.calls = true;
+            return super.visitCallExpr(expr);
+        }
+
+        @Override
+        public Expr visitGetExpr(Expr.Get expr) {
+            current.fieldReads.add(expr.name);
+            return super.visitGetExpr(expr);
+        }
+
+        @Override
+        public Expr visitLetExpr(Expr.Let expr) {
+            current.writes.add(expr.variable);
+            return super.visitLetExpr(expr);
+        }
+
+        @Override
+        public Expr visitMemoExpr(Expr.Memo expr) {
+            current.writes.add(expr.slot);
+            return super.visitMemoExpr(expr);
+        }
+
+        @Override
+        public Expr visitSetExpr(Expr.Set expr) {
+            current.fieldWrites.add(expr.name);
+            return super.visitSetExpr(expr);
+        }
+
+        @Override
+        public Expr visitSuperExpr(Expr.Super expr) {
+            current.reads.add("super");
+            return expr;
+        }
+
+        @Override
+        public Expr visitThisExpr(Expr.This expr) {
+            current.reads.add("this");
+            return expr;
+        }
+
+        @Override
+        public Expr visitTupleExpr(Expr.Tuple expr) {
+            current.allocates = true;
+            return super.visitTupleExpr(expr);
+        }
+
+        @Override
+        public Expr visitVariableExpr(Expr.Variable expr) {
+            current.reads.add(expr.name);
+            return expr;
+        }
+
+        @Override
+        public Expr visitVectorExpr(Expr.Vector expr) {
+            current.allocates = true;
+            return super.visitVectorExpr(expr);
+        }
+    }
+}
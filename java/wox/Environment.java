@@ -3,45 +3,144 @@ package wox;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * The variables of a scope, with the enclosing scope as `parent`.
+ *
+ * Every environment of a program knows whether the program has spawned a
+ * task, i.e., whether other threads may be looking at it. Until then no
+ * locking is done at all. From then on each environment is locked while it
+ * is looked into or written to, so that tasks sharing variables see them
+ * whole, although not necessarily in any particular order. Globals kept in
+ * `Globals` are never locked, as they take care of themselves.
+ */
 public class Environment {
+    // one per program, shared by all of its environments
+    private static class Sharing {
+        volatile boolean on = false;
+    }
+
     final Environment parent;
-    private final Map<String, Object> bindings = new HashMap<>();
+    private final Map<String, Object> bindings;
+    private final Sharing sharing;
+    // whether `bindings` may be used by several threads as they are
+    private final boolean concurrent;
 
     Environment() {
-        parent = null;
+        this(null);
     }
 
     Environment(Environment parent) {
+        this(parent, new HashMap<>());
+    }
+
+    // defines straight into `bindings`, which is not copied
+    Environment(Environment parent, Map<String, Object> bindings) {
         this.parent = parent;
+        this.bindings = bindings;
+        this.sharing = parent == null ? new Sharing() : parent.sharing;
+        this.concurrent = bindings instanceof Globals;
     }
 
-    Object get(Token name) {
+    // from now on, other threads may use the environments of the program
+    void share() {
+        sharing.on = true;
+    }
+
+    Object get(String name, int at) {
+        if (sharing.on)
+            return getShared(name, at);
+
         Environment envr = this;
         do {
-            if (envr.bindings.containsKey(name.text)) {
-                return envr.bindings.get(name.text);
+            Object value = envr.bindings.get(name);
+            if (value != null || envr.bindings.containsKey(name)) {
+                return value;
             }
             envr = envr.parent;
-        } while (envr.parent != null);
+        } while (envr != null);
 
-        throw new Exception(name, unbound(name));
+        throw new Exception(at, unbound(name, at));
+    }
+
+    // looks up a binding without reporting unbound names, for callers that
+    // only need to compare against a known value
+    Object lookup(String name) {
+        Environment envr = this;
+        do {
+            Object value;
+            boolean found;
+            if (sharing.on && !envr.concurrent) {
+                synchronized (envr) {
+                    value = envr.bindings.get(name);
+                    found = value != null || envr.bindings.containsKey(name);
+                }
+            } else {
+                value = envr.bindings.get(name);
+                found = value != null || envr.bindings.containsKey(name);
+            }
+            if (found) {
+                return value;
+            }
+            envr = envr.parent;
+        } while (envr != null);
+
+        return null;
     }
 
     void define(String name, Object value) {
-        bindings.put(name, value);
+        if (sharing.on && !concurrent) {
+            synchronized (this) {
+                bindings.put(name, value);
+            }
+        } else {
+            bindings.put(name, value);
+        }
     }
 
-    void assign(Token name, Object value) {
+    void assign(String name, int at, Object value) {
+        boolean shared = sharing.on;
         Environment envr = this;
         do {
-            if (envr.bindings.containsKey(name.text)) {
-                envr.assign(name, value);
+            if (envr.concurrent) {
+                if (((Globals) envr.bindings).assign(name, value))
+                    return;
+            } else if (shared) {
+                synchronized (envr) {
+                    if (envr.bindings.containsKey(name)) {
+                        envr.bindings.put(name, value);
+                        return;
+                    }
+                }
+            } else if (envr.bindings.containsKey(name)) {
+                envr.bindings.put(name, value);
                 return;
             }
             envr = envr.parent;
-        } while (envr.parent != null);
+        } while (envr != null);
+
+        throw new Exception(at, "Unbound variable! The identifier '" + name + "' is not in scope.");
+    }
 
-        throw new Exception(name, "Unbound variable! The identifier '" + name.text + "' is not in scope.");
+    // whether `name` is defined in this very scope
+    boolean defines(String name) {
+        if (concurrent)
+            return bindings.containsKey(name);
+        synchronized (this) {
+            return bindings.containsKey(name);
+        }
+    }
+
+    // sets `name`, defined in this very scope, to `value` if it is still
+    // equal to `expected`
+    boolean compareAndSet(String name, Object expected, Object value) {
+        if (concurrent)
+            return ((Globals) bindings).compareAndSet(name, expected, value);
+        synchronized (this) {
+            if (!bindings.containsKey(name) || !Interpreter.isEqual(bindings.get(name), expected))
+                return false;
+            bindings.put(name, value);
+            return true;
+        }
     }
 
     Environment extend() {
@@ -49,8 +148,30 @@ public class Environment {
         return envr;
     }
 
-    private static String unbound(Token token) {
-        return "Unbound variable! The identifier '" + token.text + "'defined on " + token.lnColString()
+    private Object getShared(String name, int at) {
+        Environment envr = this;
+        do {
+            if (envr.concurrent) {
+                Object value = envr.bindings.get(name);
+                if (value != null || envr.bindings.containsKey(name)) {
+                    return value;
+                }
+            } else {
+                synchronized (envr) {
+                    Object value = envr.bindings.get(name);
+                    if (value != null || envr.bindings.containsKey(name)) {
+                        return value;
+                    }
+                }
+            }
+            envr = envr.parent;
+        } while (envr != null);
+
+        throw new Exception(at, unbound(name, at));
+    }
+
+    private static String unbound(String name, int at) {
+        return "Unbound variable! The identifier '" + name + "'defined on " + Source.describe(at)
                 + " is not in scope.";
     }
 }
@@ -1,10 +1,11 @@
 package wox;
 
 public class Exception extends RuntimeException {
-    final Token token;
+    // where in the source it happened, see `Source`
+    final int at;
 
-    Exception(Token token, String message) {
+    Exception(int at, String message) {
         super(message);
-        this.token = token;
+        this.at = at;
     }
 }
@@ -1,8 +1,10 @@
 package wox;
 
 import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
 
-abstract class Expr {
+sealed interface Expr {
   interface Visitor<R> {
     R visitAssignExpr(Assign expr);
 
@@ -18,10 +20,14 @@ abstract class Expr {
 
     R visitIfExpr(If expr);
 
+    R visitInlineExpr(Inline expr);
+
     R visitLetExpr(Let expr);
 
     R visitLiteralExpr(Literal expr);
 
+    R visitMemoExpr(Memo expr);
+
     R visitSetExpr(Set expr);
 
     R visitSuperExpr(Super expr);
@@ -37,95 +43,473 @@ abstract class Expr {
     R visitVectorExpr(Vector expr);
   }
 
-  static class Assign extends Expr {
-    Assign(Token name, Expr value) {
+  int ASSIGN = 0;
+  int BINARY = 1;
+  int CALL = 2;
+  int DO = 3;
+  int GET = 4;
+  int GROUPING = 5;
+  int IF = 6;
+  int INLINE = 7;
+  int LET = 8;
+  int LITERAL = 9;
+  int MEMO = 10;
+  int SET = 11;
+  int SUPER = 12;
+  int THIS = 13;
+  int TUPLE = 14;
+  int UNARY = 15;
+  int VARIABLE = 16;
+  int VECTOR = 17;
+  int KINDS = 18;
+
+  // the same as `accept`, but dispatching with a switch over `kind()`
+  static <R> R dispatch(Expr expr, Visitor<R> visitor) {
+    switch (expr.kind()) {
+      case ASSIGN:
+        return visitor.visitAssignExpr((Assign) expr);
+      case BINARY:
+        return visitor.visitBinaryExpr((Binary) expr);
+      case CALL:
+        return visitor.visitCallExpr((Call) expr);
+      case DO:
+        return visitor.visitDoExpr((Do) expr);
+      case GET:
+        return visitor.visitGetExpr((Get) expr);
+      case GROUPING:
+        return visitor.visitGroupingExpr((Grouping) expr);
+      case IF:
+        return visitor.visitIfExpr((If) expr);
+      case INLINE:
+        return visitor.visitInlineExpr((Inline) expr);
+      case LET:
+        return visitor.visitLetExpr((Let) expr);
+      case LITERAL:
+        return visitor.visitLiteralExpr((Literal) expr);
+      case MEMO:
+        return visitor.visitMemoExpr((Memo) expr);
+      case SET:
+        return visitor.visitSetExpr((Set) expr);
+      case SUPER:
+        return visitor.visitSuperExpr((Super) expr);
+      case THIS:
+        return visitor.visitThisExpr((This) expr);
+      case TUPLE:
+        return visitor.visitTupleExpr((Tuple) expr);
+      case UNARY:
+        return visitor.visitUnaryExpr((Unary) expr);
+      case VARIABLE:
+        return visitor.visitVariableExpr((Variable) expr);
+      case VECTOR:
+        return visitor.visitVectorExpr((Vector) expr);
+      default:
+        throw new IllegalStateException("unknown kind " + expr.kind());
+    }
+  }
+
+  private static int hashOf(Expr node) {
+    return node == null ? 0 : node.structuralHash();
+  }
+
+  private static int hashOf(List<? extends Expr> nodes) {
+    int hash = 1;
+    for (Expr node : nodes) {
+      hash = 31 * hash + hashOf(node);
+    }
+    return hash;
+  }
+
+  private static boolean same(List<? extends Expr> a, List<? extends Expr> b) {
+    if (a.size() != b.size())
+      return false;
+    for (int i = 0; i < a.size(); i++) {
+      if (a.get(i) != b.get(i))
+        return false;
+    }
+    return true;
+  }
+
+  final class Assign implements Expr {
+    Assign(String name, int at, Expr value) {
       this.name = name;
+      this.at = at;
       this.value = value;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitAssignExpr(this);
     }
 
-    final Token name;
+    @Override
+    public int kind() {
+      return ASSIGN;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+      if (value != null)
+        action.accept(value);
+    }
+
+    Assign withName(String name) {
+      if (name == this.name)
+        return this;
+      return new Assign(name, at, value);
+    }
+
+    Assign withAt(int at) {
+      if (at == this.at)
+        return this;
+      return new Assign(name, at, value);
+    }
+
+    Assign withValue(Expr value) {
+      if (value == this.value)
+        return this;
+      return new Assign(name, at, value);
+    }
+
+    @Override
+    public int structuralHash() {
+      if (hash == 0) {
+        int h = ASSIGN;
+        h = 31 * h + Objects.hashCode(name);
+        h = 31 * h + hashOf(value);
+        hash = h == 0 ? 1 : h;
+      }
+      return hash;
+    }
+
+    @Override
+    public boolean sameAs(Expr other) {
+      if (!(other instanceof Assign))
+        return false;
+      Assign that = (Assign) other;
+      return Objects.equals(name, that.name)
+          && value == that.value;
+    }
+
+    final String name;
+    final int at;
     final Expr value;
+    private int hash;
   }
 
-  static class Binary extends Expr {
-    Binary(Expr left, Token operator, Expr right) {
+  final class Binary implements Expr {
+    Binary(Expr left, TokenType operator, int at, Expr right) {
       this.left = left;
       this.operator = operator;
+      this.at = at;
       this.right = right;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitBinaryExpr(this);
     }
 
+    @Override
+    public int kind() {
+      return BINARY;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+      if (left != null)
+        action.accept(left);
+      if (right != null)
+        action.accept(right);
+    }
+
+    Binary withLeft(Expr left) {
+      if (left == this.left)
+        return this;
+      return new Binary(left, operator, at, right);
+    }
+
+    Binary withOperator(TokenType operator) {
+      if (operator == this.operator)
+        return this;
+      return new Binary(left, operator, at, right);
+    }
+
+    Binary withAt(int at) {
+      if (at == this.at)
+        return this;
+      return new Binary(left, operator, at, right);
+    }
+
+    Binary withRight(Expr right) {
+      if (right == this.right)
+        return this;
+      return new Binary(left, operator, at, right);
+    }
+
+    @Override
+    public int structuralHash() {
+      if (hash == 0) {
+        int h = BINARY;
+        h = 31 * h + hashOf(left);
+        h = 31 * h + (operator == null ? 0 : operator.ordinal());
+        h = 31 * h + hashOf(right);
+        hash = h == 0 ? 1 : h;
+      }
+      return hash;
+    }
+
+    @Override
+    public boolean sameAs(Expr other) {
+      if (!(other instanceof Binary))
+        return false;
+      Binary that = (Binary) other;
+      return left == that.left
+          && operator == that.operator
+          && right == that.right;
+    }
+
     final Expr left;
-    final Token operator;
+    final TokenType operator;
+    final int at;
     final Expr right;
+    private int hash;
   }
 
-  static class Call extends Expr {
-    Call(Expr callee, List<Expr> arguments) {
+  final class Call implements Expr {
+    Call(Expr callee, int at, List<Expr> arguments) {
       this.callee = callee;
+      this.at = at;
       this.arguments = arguments;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitCallExpr(this);
     }
 
+    @Override
+    public int kind() {
+      return CALL;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+      if (callee != null)
+        action.accept(callee);
+      if (arguments != null)
+        arguments.forEach(action);
+    }
+
+    Call withCallee(Expr callee) {
+      if (callee == this.callee)
+        return this;
+      return new Call(callee, at, arguments);
+    }
+
+    Call withAt(int at) {
+      if (at == this.at)
+        return this;
+      return new Call(callee, at, arguments);
+    }
+
+    Call withArguments(List<Expr> arguments) {
+      if (arguments == this.arguments)
+        return this;
+      return new Call(callee, at, arguments);
+    }
+
+    @Override
+    public int structuralHash() {
+      if (hash == 0) {
+        int h = CALL;
+        h = 31 * h + hashOf(callee);
+        h = 31 * h + hashOf(arguments);
+        hash = h == 0 ? 1 : h;
+      }
+      return hash;
+    }
+
+    @Override
+    public boolean sameAs(Expr other) {
+      if (!(other instanceof Call))
+        return false;
+      Call that = (Call) other;
+      return callee == that.callee
+          && same(arguments, that.arguments);
+    }
+
     final Expr callee;
+    final int at;
     final List<Expr> arguments;
+    private int hash;
   }
 
-  static class Do extends Expr {
+  final class Do implements Expr {
     Do(List<Expr> body) {
       this.body = body;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitDoExpr(this);
     }
 
+    @Override
+    public int kind() {
+      return DO;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+      if (body != null)
+        body.forEach(action);
+    }
+
+    Do withBody(List<Expr> body) {
+      if (body == this.body)
+        return this;
+      return new Do(body);
+    }
+
+    @Override
+    public int structuralHash() {
+      if (hash == 0) {
+        int h = DO;
+        h = 31 * h + hashOf(body);
+        hash = h == 0 ? 1 : h;
+      }
+      return hash;
+    }
+
+    @Override
+    public boolean sameAs(Expr other) {
+      if (!(other instanceof Do))
+        return false;
+      Do that = (Do) other;
+      return same(body, that.body);
+    }
+
     final List<Expr> body;
+    private int hash;
   }
 
-  static class Get extends Expr {
-    Get(Expr object, Token name) {
+  final class Get implements Expr {
+    Get(Expr object, String name, int at) {
       this.object = object;
       this.name = name;
+      this.at = at;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitGetExpr(this);
     }
 
+    @Override
+    public int kind() {
+      return GET;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+      if (object != null)
+        action.accept(object);
+    }
+
+    Get withObject(Expr object) {
+      if (object == this.object)
+        return this;
+      return new Get(object, name, at);
+    }
+
+    Get withName(String name) {
+      if (name == this.name)
+        return this;
+      return new Get(object, name, at);
+    }
+
+    Get withAt(int at) {
+      if (at == this.at)
+        return this;
+      return new Get(object, name, at);
+    }
+
+    @Override
+    public int structuralHash() {
+      if (hash == 0) {
+        int h = GET;
+        h = 31 * h + hashOf(object);
+        h = 31 * h + Objects.hashCode(name);
+        hash = h == 0 ? 1 : h;
+      }
+      return hash;
+    }
+
+    @Override
+    public boolean sameAs(Expr other) {
+      if (!(other instanceof Get))
+        return false;
+      Get that = (Get) other;
+      return object == that.object
+          && Objects.equals(name, that.name);
+    }
+
     final Expr object;
-    final Token name;
+    final String name;
+    final int at;
+    private int hash;
   }
 
-  static class Grouping extends Expr {
+  final class Grouping implements Expr {
     Grouping(Expr expression) {
       this.expression = expression;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitGroupingExpr(this);
     }
 
+    @Override
+    public int kind() {
+      return GROUPING;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+      if (expression != null)
+        action.accept(expression);
+    }
+
+    Grouping withExpression(Expr expression) {
+      if (expression == this.expression)
+        return this;
+      return new Grouping(expression);
+    }
+
+    @Override
+    public int structuralHash() {
+      if (hash == 0) {
+        int h = GROUPING;
+        h = 31 * h + hashOf(expression);
+        hash = h == 0 ? 1 : h;
+      }
+      return hash;
+    }
+
+    @Override
+    public boolean sameAs(Expr other) {
+      if (!(other instanceof Grouping))
+        return false;
+      Grouping that = (Grouping) other;
+      return expression == that.expression;
+    }
+
     final Expr expression;
+    private int hash;
   }
 
-  static class If extends Expr {
+  final class If implements Expr {
     If(Expr condition, Expr when_true, Expr when_false) {
       this.condition = condition;
       this.when_true = when_true;
@@ -133,143 +517,747 @@ abstract class Expr {
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitIfExpr(this);
     }
 
+    @Override
+    public int kind() {
+      return IF;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+      if (condition != null)
+        action.accept(condition);
+      if (when_true != null)
+        action.accept(when_true);
+      if (when_false != null)
+        action.accept(when_false);
+    }
+
+    If withCondition(Expr condition) {
+      if (condition == this.condition)
+        return this;
+      return new If(condition, when_true, when_false);
+    }
+
+    If withWhen_true(Expr when_true) {
+      if (when_true == this.when_true)
+        return this;
+      return new If(condition, when_true, when_false);
+    }
+
+    If withWhen_false(Expr when_false) {
+      if (when_false == this.when_false)
+        return this;
+      return new If(condition, when_true, when_false);
+    }
+
+    @Override
+    public int structuralHash() {
+      if (hash == 0) {
+        int h = IF;
+        h = 31 * h + hashOf(condition);
+        h = 31 * h + hashOf(when_true);
+        h = 31 * h + hashOf(when_false);
+        hash = h == 0 ? 1 : h;
+      }
+      return hash;
+    }
+
+    @Override
+    public boolean sameAs(Expr other) {
+      if (!(other instanceof If))
+        return false;
+      If that = (If) other;
+      return condition == that.condition
+          && when_true == that.when_true
+          && when_false == that.when_false;
+    }
+
     final Expr condition;
     final Expr when_true;
     final Expr when_false;
+    private int hash;
+  }
+
+  final class Inline implements Expr {
+    Inline(Expr.Call call, String callee, int declared, Expr body) {
+      this.call = call;
+      this.callee = callee;
+      this.declared = declared;
+      this.body = body;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitInlineExpr(this);
+    }
+
+    @Override
+    public int kind() {
+      return INLINE;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+      if (call != null)
+        action.accept(call);
+      if (body != null)
+        action.accept(body);
+    }
+
+    Inline withCall(Expr.Call call) {
+      if (call == this.call)
+        return this;
+      return new Inline(call, callee, declared, body);
+    }
+
+    Inline withCallee(String callee) {
+      if (callee == this.callee)
+        return this;
+      return new Inline(call, callee, declared, body);
+    }
+
+    Inline withDeclared(int declared) {
+      if (declared == this.declared)
+        return this;
+      return new Inline(call, callee, declared, body);
+    }
+
+    Inline withBody(Expr body) {
+      if (body == this.body)
+        return this;
+      return new Inline(call, callee, declared, body);
+    }
+
+    @Override
+    public int structuralHash() {
+      if (hash == 0) {
+        int h = INLINE;
+        h = 31 * h + hashOf(call);
+        h = 31 * h + Objects.hashCode(callee);
+        h = 31 * h + declared;
+        h = 31 * h + hashOf(body);
+        hash = h == 0 ? 1 : h;
+      }
+      return hash;
+    }
+
+    @Override
+    public boolean sameAs(Expr other) {
+      if (!(other instanceof Inline))
+        return false;
+      Inline that = (Inline) other;
+      return call == that.call
+          && Objects.equals(callee, that.callee)
+          && declared == that.declared
+          && body == that.body;
+    }
+
+    final Expr.Call call;
+    final String callee;
+    final int declared;
+    final Expr body;
+    private int hash;
   }
 
-  static class Let extends Expr {
-    Let(Token variable, Expr definition, Expr body) {
+  final class Let implements Expr {
+    Let(String variable, int at, Expr definition, Expr body) {
       this.variable = variable;
+      this.at = at;
       this.definition = definition;
       this.body = body;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitLetExpr(this);
     }
 
-    final Token variable;
+    @Override
+    public int kind() {
+      return LET;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+      if (definition != null)
+        action.accept(definition);
+      if (body != null)
+        action.accept(body);
+    }
+
+    Let withVariable(String variable) {
+      if (variable == this.variable)
+        return this;
+      return new Let(variable, at, definition, body);
+    }
+
+    Let withAt(int at) {
+      if (at == this.at)
+        return this;
+      return new Let(variable, at, definition, body);
+    }
+
+    Let withDefinition(Expr definition) {
+      if (definition == this.definition)
+        return this;
+      return new Let(variable, at, definition, body);
+    }
+
+    Let withBody(Expr body) {
+      if (body == this.body)
+        return this;
+      return new Let(variable, at, definition, body);
+    }
+
+    @Override
+    public int structuralHash() {
+      if (hash == 0) {
+        int h = LET;
+        h = 31 * h + Objects.hashCode(variable);
+        h = 31 * h + hashOf(definition);
+        h = 31 * h + hashOf(body);
+        hash = h == 0 ? 1 : h;
+      }
+      return hash;
+    }
+
+    @Override
+    public boolean sameAs(Expr other) {
+      if (!(other instanceof Let))
+        return false;
+      Let that = (Let) other;
+      return Objects.equals(variable, that.variable)
+          && definition == that.definition
+          && body == that.body;
+    }
+
+    final String variable;
+    final int at;
     final Expr definition;
     final Expr body;
+    private int hash;
   }
 
-  static class Literal extends Expr {
+  final class Literal implements Expr {
     Literal(Object value) {
       this.value = value;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitLiteralExpr(this);
     }
 
+    @Override
+    public int kind() {
+      return LITERAL;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+    }
+
+    Literal withValue(Object value) {
+      if (value == this.value)
+        return this;
+      return new Literal(value);
+    }
+
+    @Override
+    public int structuralHash() {
+      if (hash == 0) {
+        int h = LITERAL;
+        h = 31 * h + Objects.hashCode(value);
+        hash = h == 0 ? 1 : h;
+      }
+      return hash;
+    }
+
+    @Override
+    public boolean sameAs(Expr other) {
+      if (!(other instanceof Literal))
+        return false;
+      Literal that = (Literal) other;
+      return Objects.equals(value, that.value);
+    }
+
     final Object value;
+    private int hash;
   }
 
-  static class Set extends Expr {
-    Set(Expr object, Token name, Expr value) {
+  final class Memo implements Expr {
+    Memo(String slot, Expr expression) {
+      this.slot = slot;
+      this.expression = expression;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitMemoExpr(this);
+    }
+
+    @Override
+    public int kind() {
+      return MEMO;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+      if (expression != null)
+        action.accept(expression);
+    }
+
+    Memo withSlot(String slot) {
+      if (slot == this.slot)
+        return this;
+      return new Memo(slot, expression);
+    }
+
+    Memo withExpression(Expr expression) {
+      if (expression == this.expression)
+        return this;
+      return new Memo(slot, expression);
+    }
+
+    @Override
+    public int structuralHash() {
+      if (hash == 0) {
+        int h = MEMO;
+        h = 31 * h + Objects.hashCode(slot);
+        h = 31 * h + hashOf(expression);
+        hash = h == 0 ? 1 : h;
+      }
+      return hash;
+    }
+
+    @Override
+    public boolean sameAs(Expr other) {
+      if (!(other instanceof Memo))
+        return false;
+      Memo that = (Memo) other;
+      return Objects.equals(slot, that.slot)
+          && expression == that.expression;
+    }
+
+    final String slot;
+    final Expr expression;
+    private int hash;
+  }
+
+  final class Set implements Expr {
+    Set(Expr object, String name, int at, Expr value) {
       this.object = object;
       this.name = name;
+      this.at = at;
       this.value = value;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitSetExpr(this);
     }
 
+    @Override
+    public int kind() {
+      return SET;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+      if (object != null)
+        action.accept(object);
+      if (value != null)
+        action.accept(value);
+    }
+
+    Set withObject(Expr object) {
+      if (object == this.object)
+        return this;
+      return new Set(object, name, at, value);
+    }
+
+    Set withName(String name) {
+      if (name == this.name)
+        return this;
+      return new Set(object, name, at, value);
+    }
+
+    Set withAt(int at) {
+      if (at == this.at)
+        return this;
+      return new Set(object, name, at, value);
+    }
+
+    Set withValue(Expr value) {
+      if (value == this.value)
+        return this;
+      return new Set(object, name, at, value);
+    }
+
+    @Override
+    public int structuralHash() {
+      if (hash == 0) {
+        int h = SET;
+        h = 31 * h + hashOf(object);
+        h = 31 * h + Objects.hashCode(name);
+        h = 31 * h + hashOf(value);
+        hash = h == 0 ? 1 : h;
+      }
+      return hash;
+    }
+
+    @Override
+    public boolean sameAs(Expr other) {
+      if (!(other instanceof Set))
+        return false;
+      Set that = (Set) other;
+      return object == that.object
+          && Objects.equals(name, that.name)
+          && value == that.value;
+    }
+
     final Expr object;
-    final Token name;
+    final String name;
+    final int at;
     final Expr value;
+    private int hash;
   }
 
-  static class Super extends Expr {
-    Super(Token keyword, Token method) {
-      this.keyword = keyword;
+  final class Super implements Expr {
+    Super(int at, String method) {
+      this.at = at;
       this.method = method;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitSuperExpr(this);
     }
 
-    final Token keyword;
-    final Token method;
+    @Override
+    public int kind() {
+      return SUPER;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+    }
+
+    Super withAt(int at) {
+      if (at == this.at)
+        return this;
+      return new Super(at, method);
+    }
+
+    Super withMethod(String method) {
+      if (method == this.method)
+        return this;
+      return new Super(at, method);
+    }
+
+    @Override
+    public int structuralHash() {
+      if (hash == 0) {
+        int h = SUPER;
+        h = 31 * h + Objects.hashCode(method);
+        hash = h == 0 ? 1 : h;
+      }
+      return hash;
+    }
+
+    @Override
+    public boolean sameAs(Expr other) {
+      if (!(other instanceof Super))
+        return false;
+      Super that = (Super) other;
+      return Objects.equals(method, that.method);
+    }
+
+    final int at;
+    final String method;
+    private int hash;
   }
 
-  static class This extends Expr {
-    This(Token keyword) {
-      this.keyword = keyword;
+  final class This implements Expr {
+    This(int at) {
+      this.at = at;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitThisExpr(this);
     }
 
-    final Token keyword;
+    @Override
+    public int kind() {
+      return THIS;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+    }
+
+    This withAt(int at) {
+      if (at == this.at)
+        return this;
+      return new This(at);
+    }
+
+    @Override
+    public int structuralHash() {
+      if (hash == 0) {
+        int h = THIS;
+        hash = h == 0 ? 1 : h;
+      }
+      return hash;
+    }
+
+    @Override
+    public boolean sameAs(Expr other) {
+      if (!(other instanceof This))
+        return false;
+      return true;
+    }
+
+    final int at;
+    private int hash;
   }
 
-  static class Tuple extends Expr {
+  final class Tuple implements Expr {
     Tuple(List<Expr> elements) {
       this.elements = elements;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitTupleExpr(this);
     }
 
+    @Override
+    public int kind() {
+      return TUPLE;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+      if (elements != null)
+        elements.forEach(action);
+    }
+
+    Tuple withElements(List<Expr> elements) {
+      if (elements == this.elements)
+        return this;
+      return new Tuple(elements);
+    }
+
+    @Override
+    public int structuralHash() {
+      if (hash == 0) {
+        int h = TUPLE;
+        h = 31 * h + hashOf(elements);
+        hash = h == 0 ? 1 : h;
+      }
+      return hash;
+    }
+
+    @Override
+    public boolean sameAs(Expr other) {
+      if (!(other instanceof Tuple))
+        return false;
+      Tuple that = (Tuple) other;
+      return same(elements, that.elements);
+    }
+
     final List<Expr> elements;
+    private int hash;
   }
 
-  static class Unary extends Expr {
-    Unary(Token operator, Expr right) {
+  final class Unary implements Expr {
+    Unary(TokenType operator, int at, Expr right) {
       this.operator = operator;
+      this.at = at;
       this.right = right;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitUnaryExpr(this);
     }
 
-    final Token operator;
+    @Override
+    public int kind() {
+      return UNARY;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+      if (right != null)
+        action.accept(right);
+    }
+
+    Unary withOperator(TokenType operator) {
+      if (operator == this.operator)
+        return this;
+      return new Unary(operator, at, right);
+    }
+
+    Unary withAt(int at) {
+      if (at == this.at)
+        return this;
+      return new Unary(operator, at, right);
+    }
+
+    Unary withRight(Expr right) {
+      if (right == this.right)
+        return this;
+      return new Unary(operator, at, right);
+    }
+
+    @Override
+    public int structuralHash() {
+      if (hash == 0) {
+        int h = UNARY;
+        h = 31 * h + (operator == null ? 0 : operator.ordinal());
+        h = 31 * h + hashOf(right);
+        hash = h == 0 ? 1 : h;
+      }
+      return hash;
+    }
+
+    @Override
+    public boolean sameAs(Expr other) {
+      if (!(other instanceof Unary))
+        return false;
+      Unary that = (Unary) other;
+      return operator == that.operator
+          && right == that.right;
+    }
+
+    final TokenType operator;
+    final int at;
     final Expr right;
+    private int hash;
   }
 
-  static class Variable extends Expr {
-    Variable(Token name) {
+  final class Variable implements Expr {
+    Variable(String name, int at) {
       this.name = name;
+      this.at = at;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitVariableExpr(this);
     }
 
-    final Token name;
+    @Override
+    public int kind() {
+      return VARIABLE;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+    }
+
+    Variable withName(String name) {
+      if (name == this.name)
+        return this;
+      return new Variable(name, at);
+    }
+
+    Variable withAt(int at) {
+      if (at == this.at)
+        return this;
+      return new Variable(name, at);
+    }
+
+    @Override
+    public int structuralHash() {
+      if (hash == 0) {
+        int h = VARIABLE;
+        h = 31 * h + Objects.hashCode(name);
+        hash = h == 0 ? 1 : h;
+      }
+      return hash;
+    }
+
+    @Override
+    public boolean sameAs(Expr other) {
+      if (!(other instanceof Variable))
+        return false;
+      Variable that = (Variable) other;
+      return Objects.equals(name, that.name);
+    }
+
+    final String name;
+    final int at;
+    private int hash;
   }
 
-  static class Vector extends Expr {
+  final class Vector implements Expr {
     Vector(List<Expr> elements) {
       this.elements = elements;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitVectorExpr(this);
     }
 
+    @Override
+    public int kind() {
+      return VECTOR;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+      if (elements != null)
+        elements.forEach(action);
+    }
+
+    Vector withElements(List<Expr> elements) {
+      if (elements == this.elements)
+        return this;
+      return new Vector(elements);
+    }
+
+    @Override
+    public int structuralHash() {
+      if (hash == 0) {
+        int h = VECTOR;
+        h = 31 * h + hashOf(elements);
+        hash = h == 0 ? 1 : h;
+      }
+      return hash;
+    }
+
+    @Override
+    public boolean sameAs(Expr other) {
+      if (!(other instanceof Vector))
+        return false;
+      Vector that = (Vector) other;
+      return same(elements, that.elements);
+    }
+
     final List<Expr> elements;
+    private int hash;
   }
 
-  abstract <R> R accept(Visitor<R> visitor);
+  <R> R accept(Visitor<R> visitor);
+
+  int kind();
+
+  // calls `action` on every direct child Expr that is not `null`, in order
+  void forEachExpr(Consumer<? super Expr> action);
+
+  // a hash of the node's structure without positions, computed once
+  int structuralHash();
+
+  // whether `other` has the same structure, comparing children by identity,
+  // which is all it takes for nodes that are interned bottom-up
+  boolean sameAs(Expr other);
 }
@@ -0,0 +1,141 @@
+package wox;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Evaluates the elements of tuples and vectors, and the arguments of calls,
+ * at the same time on the common `ForkJoinPool` where that cannot be told
+ * apart from evaluating them in order, which is opt-in with
+ * `-Dwox.parallel=true`.
+ *
+ * That is the case when no element prints or assigns anything but its own
+ * `let`s, and every function it calls is isolated in the sense of
+ * `Parallel`. Which elements are worth a thread of their own is learned by
+ * timing them: once two or more of them have taken `HEAVY_NANOS` or more,
+ * those are forked the next time around, while the others are evaluated on
+ * the spot. Should several elements fail, the error of the first is raised,
+ * as it would have been anyway.
+ */
+class Forking {
+    static final boolean ENABLED = Boolean.getBoolean("wox.parallel");
+    static final long HEAVY_NANOS = 100_000;
+
+    // what is known about the elements of one node
+    private static class Plan {
+        // whether the elements are pure but for the functions they call
+        final boolean pure;
+        final Set<String> callees = new HashSet<>();
+        // how long each element took the last time, written racily by
+        // whichever thread evaluated it
+        final long[] nanos;
+
+        Plan(List<Expr> elements) {
+            boolean pure = true;
+            for (Expr element : elements) {
+                Parallel.Locals locals = new Parallel.Locals();
+                locals.rewrite(element);
+                pure &= !locals.escapes && Collections.disjoint(locals.declared, locals.callees);
+                callees.addAll(locals.callees);
+            }
+            this.pure = pure;
+            this.nanos = new long[elements.size()];
+        }
+    }
+
+    // by node, for every interpreter of the program
+    private final Map<Expr, Plan> plans = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    Object[] evaluate(Interpreter interpreter, Environment environment, Expr node, List<Expr> elements) {
+        Plan plan = plans.computeIfAbsent(node, key -> new Plan(elements));
+        int n = elements.size();
+        Object[] values = new Object[n];
+        if (!worthForking(plan, environment)) {
+            for (int i = 0; i < n; i++) {
+                long start = System.nanoTime();
+                values[i] = interpreter.evaluate(elements.get(i));
+                plan.nanos[i] = System.nanoTime() - start;
+            }
+            return values;
+        }
+
+        // all heavy elements but the last are forked, which is done on the
+        // spot along with the light ones
+        interpreter.share();
+        RuntimeException[] errors = new RuntimeException[n];
+        ForkJoinTask<?>[] forked = new ForkJoinTask<?>[n];
+        int last = n - 1;
+        while (plan.nanos[last] < HEAVY_NANOS) {
+            last--;
+        }
+        for (int i = 0; i < last; i++) {
+            if (plan.nanos[i] >= HEAVY_NANOS) {
+                int element = i;
+                forked[i] = ForkJoinTask.adapt(() -> evaluate(new Interpreter(interpreter, environment), plan,
+                        elements, element, values, errors)).fork();
+            }
+        }
+        int failed = n;
+        for (int i = 0; i < n; i++) {
+            if (forked[i] == null && !evaluate(interpreter, plan, elements, i, values, errors)) {
+                failed = i;
+                break;
+            }
+        }
+        // the elements after a failure are of no use anymore, so they are
+        // dropped unless they have started, and not waited for, while those
+        // before it may still fail first
+        for (int i = failed + 1; i < n; i++) {
+            if (forked[i] != null)
+                forked[i].cancel(false);
+        }
+        for (int i = 0; i < failed; i++) {
+            if (forked[i] != null)
+                forked[i].join();
+        }
+        for (RuntimeException error : errors) {
+            if (error != null)
+                throw error;
+        }
+        return values;
+    }
+
+    // false if evaluating the `i`th element failed
+    private static boolean evaluate(Interpreter interpreter, Plan plan, List<Expr> elements, int i,
+            Object[] values, RuntimeException[] errors) {
+        long start = System.nanoTime();
+        try {
+            values[i] = interpreter.evaluate(elements.get(i));
+            return true;
+        } catch (RuntimeException error) {
+            errors[i] = error;
+            return false;
+        } finally {
+            plan.nanos[i] = System.nanoTime() - start;
+        }
+    }
+
+    private static boolean worthForking(Plan plan, Environment environment) {
+        if (!plan.pure)
+            return false;
+        int heavy = 0;
+        for (long nanos : plan.nanos) {
+            if (nanos >= HEAVY_NANOS)
+                heavy++;
+        }
+        if (heavy < 2)
+            return false;
+        // the functions called may have been defined anew since
+        for (String callee : plan.callees) {
+            Object function = environment.lookup(callee);
+            if (!(function instanceof WoxCallable) || !Parallel.isolated((WoxCallable) function, new HashSet<>()))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,225 @@
+package wox;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Globals that any number of threads may read and write at once, without
+ * the locking that `Environment` otherwise does once a program has spawned a
+ * task. Programs get these unless their host passes bindings of its own, and
+ * hosts running scripts on several threads against the same globals can pass
+ * them to `PreparedScript.run`.
+ *
+ * Every name is given a slot the first time it is defined, which it keeps
+ * for good. Slots live in chunks that are never moved, so that a read is no
+ * more than a lookup of the slot and an acquiring read of it, and never
+ * waits. Writes are volatile, and `compareAndSet` updates a global only if it
+ * still equals what the caller last saw, as `==` has it.
+ *
+ * `snapshot()` copies the globals into a map that no longer changes, and
+ * hands out that same copy until the globals are next written, so that
+ * settings that are read much and written seldom are not copied every time.
+ * It is not atomic: a write made while it copies may or may not be in it.
+ */
+public class Globals extends AbstractMap<String, Object> {
+    private static final int CHUNK = 64;
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Object[].class);
+    // in slots of names that are not defined (anymore)
+    private static final Object ABSENT = new Object();
+    private static final VarHandle SNAPSHOT;
+
+    static {
+        try {
+            SNAPSHOT = MethodHandles.lookup().findVarHandle(Globals.class, "snapshot", Map.class);
+        } catch (ReflectiveOperationException error) {
+            throw new ExceptionInInitializerError(error);
+        }
+    }
+
+    private final Map<String, Integer> slots = new ConcurrentHashMap<>();
+    // grown, but never copied, under the lock
+    private volatile Object[][] chunks = new Object[1][];
+    private int size = 0;
+    private volatile Map<String, Object> snapshot;
+
+    @Override
+    public Object get(Object name) {
+        Integer slot = slots.get(name);
+        if (slot == null)
+            return null;
+        Object value = read(slot);
+        return value == ABSENT ? null : value;
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        Integer slot = slots.get(name);
+        return slot != null && read(slot) != ABSENT;
+    }
+
+    @Override
+    public Object put(String name, Object value) {
+        int slot = slots.computeIfAbsent(name, key -> allocate());
+        Object old = SLOT.getAndSet(chunk(slot), slot % CHUNK, value);
+        written();
+        return old == ABSENT ? null : old;
+    }
+
+    // like `put`, but only if `name` is defined already
+    boolean assign(String name, Object value) {
+        Integer slot = slots.get(name);
+        if (slot == null || read(slot) == ABSENT)
+            return false;
+        SLOT.setVolatile(chunk(slot), slot % CHUNK, value);
+        written();
+        return true;
+    }
+
+    @Override
+    public Object remove(Object name) {
+        Integer slot = slots.get(name);
+        if (slot == null)
+            return null;
+        Object old = SLOT.getAndSet(chunk(slot), slot % CHUNK, ABSENT);
+        written();
+        return old == ABSENT ? null : old;
+    }
+
+    // sets `name` to `value` if it is defined and equal to `expected`
+    public boolean compareAndSet(String name, Object expected, Object value) {
+        Integer slot = slots.get(name);
+        if (slot == null)
+            return false;
+        Object[] chunk = chunk(slot);
+        while (true) {
+            Object current = SLOT.getAcquire(chunk, slot % CHUNK);
+            if (current == ABSENT || !Interpreter.isEqual(current, expected))
+                return false;
+            // the very value compared with, lest another equal one have
+            // taken its place in between
+            if (SLOT.compareAndSet(chunk, slot % CHUNK, current, value)) {
+                written();
+                return true;
+            }
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> copy = snapshot;
+        if (copy != null && !(copy instanceof Copying))
+            return copy;
+        // a write either comes before this, and is copied, or sees it and
+        // takes it back, in which case the copy is not kept; the mark is this
+        // copy's own, lest another copy begun after that write be taken for it
+        Map<String, Object> mark = new Copying();
+        snapshot = mark;
+        copy = Collections.unmodifiableMap(new LinkedHashMap<>(this));
+        SNAPSHOT.compareAndSet(this, mark, copy);
+        return copy;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                return new Entries();
+            }
+
+            @Override
+            public int size() {
+                int size = 0;
+                for (Iterator<Map.Entry<String, Object>> entries = iterator(); entries.hasNext(); entries.next()) {
+                    size++;
+                }
+                return size;
+            }
+        };
+    }
+
+    // after every write, which must be volatile for `snapshot` to see it
+    private void written() {
+        if (snapshot != null)
+            snapshot = null;
+    }
+
+    private Object read(int slot) {
+        return SLOT.getAcquire(chunk(slot), slot % CHUNK);
+    }
+
+    private Object[] chunk(int slot) {
+        return chunks[slot / CHUNK];
+    }
+
+    private synchronized int allocate() {
+        int slot = size++;
+        Object[][] chunks = this.chunks;
+        if (slot / CHUNK == chunks.length) {
+            Object[][] grown = new Object[chunks.length * 2][];
+            System.arraycopy(chunks, 0, grown, 0, chunks.length);
+            chunks = grown;
+        }
+        if (chunks[slot / CHUNK] == null) {
+            Object[] chunk = new Object[CHUNK];
+            Arrays.fill(chunk, ABSENT);
+            chunks[slot / CHUNK] = chunk;
+        }
+        // seen by readers of the slot, which they get from `slots` after this
+        this.chunks = chunks;
+        return slot;
+    }
+
+    // the snapshot while it is being copied, which is not one to hand out
+    private static class Copying extends AbstractMap<String, Object> {
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return Collections.emptySet();
+        }
+    }
+
+    // the defined globals, as they are when iterated over
+    private class Entries implements Iterator<Map.Entry<String, Object>> {
+        private final Iterator<Map.Entry<String, Integer>> names = slots.entrySet().iterator();
+        private Map.Entry<String, Object> next;
+        private String last;
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && names.hasNext()) {
+                Map.Entry<String, Integer> name = names.next();
+                Object value = read(name.getValue());
+                if (value != ABSENT)
+                    next = new SimpleImmutableEntry<>(name.getKey(), value);
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, Object> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Map.Entry<String, Object> entry = next;
+            next = null;
+            last = entry.getKey();
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            if (last == null)
+                throw new IllegalStateException();
+            Globals.this.remove(last);
+            last = null;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package wox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Substitutes the bodies of small, non-recursive top-level functions at their
+ * call sites. A function qualifies when it is declared exactly once in the
+ * program, is never assigned to, and its body is a single expression no larger
+ * than `BUDGET` nodes once its own calls have been inlined.
+ *
+ * A call `f(a, b)` to `fn f(x, y) { e }` becomes `let x = a in let y = b in e`,
+ * wrapped in an `Expr.Inline` that still holds the original call. The
+ * interpreter falls back to that call whenever the global `f` no longer refers
+ * to the inlined declaration, e.g., after it was redefined at the prompt.
+ */
+class Inliner extends Rewriter {
+    // maximum size of an inlined body, counted in expression nodes
+    static final int BUDGET = 24;
+
+    private final Map<String, Stmt.Function> candidates = new HashMap<>();
+    private final Map<Stmt.Function, Expr> bodies = new HashMap<>();
+    private final Set<Stmt.Function> visiting = new HashSet<>();
+    private final Set<Stmt.Function> recursive = new HashSet<>();
+
+    // names bound between the top level and the node being rewritten
+    private Deque<Set<String>> scopes = new ArrayDeque<>();
+
+    List<Stmt> inline(List<Stmt> stmts) {
+        findCandidates(stmts);
+        if (candidates.isEmpty())
+            return stmts;
+        return rewriteStmts(stmts);
+    }
+
+    private void findCandidates(List<Stmt> stmts) {
+        Map<String, Integer> declared = new HashMap<>();
+        for (Stmt stmt : stmts) {
+            String name = null;
+            if (stmt instanceof Stmt.Function) {
+                name = ((Stmt.Function) stmt).name;
+            } else if (stmt instanceof Stmt.Var) {
+                name = ((Stmt.Var) stmt).name;
+            } else if (stmt instanceof Stmt.Class) {
+                name = ((Stmt.Class) stmt).name;
+            }
+            if (name != null)
+                declared.merge(name, 1, Integer::sum);
+        }
+
+        Set<String> assigned = Names.assigned(stmts);
+        for (Stmt stmt : stmts) {
+            if (!(stmt instanceof Stmt.Function))
+                continue;
+            Stmt.Function function = (Stmt.Function) stmt;
+            String name = function.name;
+            if (declared.get(name) == 1 && !assigned.contains(name) && isSmall(function)
+                    && bodyOf(function) != null) {
+                candidates.put(name, function);
+            }
+        }
+    }
+
+    // only bodies not far over the budget are worth parsing ahead of their
+    // first call, and a body never has fewer tokens than nodes
+    private static boolean isSmall(Stmt.Function function) {
+        if (!(function.body instanceof LazyBody))
+            return true;
+        if (((LazyBody) function.body).width() > 2 * BUDGET)
+            return false;
+        try {
+            function.body.size();
+            return true;
+        } catch (Exception error) {
+            // the syntax error surfaces again when the function is called
+            return false;
+        }
+    }
+
+    // the single expression a function evaluates to, if that is all it does
+    private static Expr bodyOf(Stmt.Function function) {
+        if (function.body.size() != 1)
+            return null;
+        Stmt stmt = function.body.get(0);
+        if (stmt instanceof Stmt.Expression)
+            return ((Stmt.Expression) stmt).expression;
+        if (stmt instanceof Stmt.Return)
+            return ((Stmt.Return) stmt).value;
+        return null;
+    }
+
+    // returns the callee's body with its own calls inlined, or `null` if the
+    // callee is recursive or too large
+    private Expr inlined(Stmt.Function function) {
+        if (bodies.containsKey(function))
+            return bodies.get(function);
+        if (visiting.contains(function)) {
+            recursive.add(function);
+            return null;
+        }
+
+        Deque<Set<String>> outer = scopes;
+        scopes = new ArrayDeque<>();
+        scopes.push(paramsOf(function));
+        visiting.add(function);
+        Expr body;
+        try {
+            body = rewrite(bodyOf(function));
+        } finally {
+            visiting.remove(function);
+            scopes = outer;
+        }
+
+        if (recursive.contains(function) || Names.size(body) > BUDGET)
+            body = null;
+        bodies.put(function, body);
+        return body;
+    }
+
+    private static Set<String> paramsOf(Stmt.Function function) {
+        return new HashSet<>(function.params);
+    }
+
+    private boolean isLocal(String name) {
+        for (Set<String> scope : scopes) {
+            if (scope.contains(name))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        scopes.push(Names.declared(stmt.statements));
+        try {
+            return super.visitBlockStmt(stmt);
+        } finally {
+            scopes.pop();
+        }
+    }
+
+    @Override
+    public Stmt visitLoopStmt(Stmt.Loop stmt) {
+        scopes.push(Names.declared(stmt.statements));
+        try {
+            return super.visitLoopStmt(stmt);
+        } finally {
+            scopes.pop();
+        }
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        if (isUnparsed(stmt))
+            return defer(stmt);
+        Set<String> scope = paramsOf(stmt);
+        scope.addAll(Names.declared(stmt.body));
+        scopes.push(scope);
+        try {
+            return super.visitFunctionStmt(stmt);
+        } finally {
+            scopes.pop();
+        }
+    }
+
+    @Override
+    public Expr visitLetExpr(Expr.Let expr) {
+        Expr definition = rewrite(expr.definition);
+        scopes.push(Set.of(expr.variable));
+        Expr body;
+        try {
+            body = rewrite(expr.body);
+        } finally {
+            scopes.pop();
+        }
+        if (definition == expr.definition && body == expr.body)
+            return expr;
+        return new Expr.Let(expr.variable, expr.at, definition, body);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr.Call call = (Expr.Call) super.visitCallExpr(expr);
+        if (!(call.callee instanceof Expr.Variable))
+            return call;
+
+        String name = ((Expr.Variable) call.callee).name;
+        Stmt.Function function = candidates.get(name);
+        if (function == null || isLocal(name) || function.params.size() != call.arguments.size())
+            return call;
+
+        Expr body = inlined(function);
+        if (body == null)
+            return call;
+
+        // the callee's free names must resolve to the same globals at the call
+        // site, and the arguments must not see the parameters being bound
+        Set<String> params = paramsOf(function);
+        for (String free : Names.free(body)) {
+            if (!params.contains(free) && isLocal(free))
+                return call;
+        }
+        for (Expr argument : call.arguments) {
+            for (String free : Names.free(argument)) {
+                if (params.contains(free))
+                    return call;
+            }
+        }
+
+        for (int i = function.params.size() - 1; i >= 0; i--) {
+            body = new Expr.Let(function.params.get(i), function.at, call.arguments.get(i), body);
+        }
+        return new Expr.Inline(call, function.name, function.at, body);
+    }
+
+    /**
+     * Name-based queries over subtrees, implemented as passes that rewrite
+     * nothing.
+     */
+    private static class Names extends Rewriter {
+        final Set<String> names = new HashSet<>();
+        final Deque<String> bound = new ArrayDeque<>();
+        int size = 0;
+
+        // every name assigned to anywhere in the program
+        static Set<String> assigned(List<Stmt> stmts) {
+            Names pass = new Names() {
+                @Override
+                public Expr visitAssignExpr(Expr.Assign expr) {
+                    names.add(expr.name);
+                    return super.visitAssignExpr(expr);
+                }
+            };
+            pass.rewriteStmts(stmts);
+            return pass.names;
+        }
+
+        // names read or assigned in an expression that are not bound by a
+        // `let` inside of it
+        static Set<String> free(Expr expr) {
+            Names pass = new Names() {
+                @Override
+                public Expr visitAssignExpr(Expr.Assign expr) {
+                    if (!bound.contains(expr.name))
+                        names.add(expr.name);
+                    return super.visitAssignExpr(expr);
+                }
+
+                @Override
+                public Expr visitVariableExpr(Expr.Variable expr) {
+                    if (!bound.contains(expr.name))
+                        names.add(expr.name);
+                    return expr;
+                }
+
+                @Override
+                public Expr visitLetExpr(Expr.Let expr) {
+                    rewrite(expr.definition);
+                    bound.push(expr.variable);
+                    rewrite(expr.body);
+                    bound.pop();
+                    return expr;
+                }
+            };
+            pass.rewrite(expr);
+            return pass.names;
+        }
+
+        // names declared directly within a list of statements
+        static Set<String> declared(List<Stmt> stmts) {
+            Set<String> names = new HashSet<>();
+            for (Stmt stmt : stmts) {
+                if (stmt instanceof Stmt.Var) {
+                    names.add(((Stmt.Var) stmt).name);
+                } else if (stmt instanceof Stmt.Function) {
+                    names.add(((Stmt.Function) stmt).name);
+                } else if (stmt instanceof Stmt.Class) {
+                    names.add(((Stmt.Class) stmt).name);
+                }
+            }
+            return names;
+        }
+
+        static int size(Expr expr) {
+            Names pass = new Names() {
+                @Override
+                Expr rewrite(Expr expr) {
+                    size++;
+                    return super.rewrite(expr);
+                }
+            };
+            pass.rewrite(expr);
+            return pass.size;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package wox;
+
+/**
+ * Hash-conses expressions: structurally identical subtrees are replaced by a
+ * single shared node. Generated scripts tend to repeat the same literal
+ * tuples and vectors thousands of times, each of which then only takes up
+ * one node, and passes may key whatever they compute about a subtree on its
+ * identity. Anything that names something, such as an `a.b.c` chain, is
+ * not shared, see below.
+ *
+ * Nodes are interned bottom-up, as the parser builds them, so a node's
+ * children have already been replaced by their shared instances and
+ * comparing two nodes never goes deeper than their own fields (see
+ * `Expr.sameAs`). Only nodes without a position anywhere in them are shared,
+ * i.e., literals and the tuples, vectors, groupings and conditionals made of
+ * them. A node with one (a variable, call, operator and so on) is where a
+ * runtime error would be reported, and must be reported at the occurrence
+ * it happens in rather than at whichever came first.
+ *
+ * An interner is not thread-safe; parsers working concurrently each use
+ * their own.
+ */
+class Interner {
+    // whether parsers share expressions, set with `-Dwox.share=true`
+    static final boolean ENABLED = Boolean.getBoolean("wox.share");
+
+    private Expr[] table = new Expr[1 << 10];
+    private int size = 0;
+
+    // the shared node structurally identical to `expr`, which becomes the
+    // shared one if there is none yet
+    @SuppressWarnings("unchecked")
+    <T extends Expr> T intern(T expr) {
+        if (!positionFree(expr))
+            return expr;
+        int mask = table.length - 1;
+        int slot = spread(expr.structuralHash()) & mask;
+        for (Expr found = table[slot]; found != null; found = table[slot]) {
+            // `sameAs` only holds between nodes of the same class
+            if (found == expr || expr.sameAs(found))
+                return (T) found;
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = expr;
+        if (++size > table.length / 2)
+            grow();
+        return expr;
+    }
+
+    private boolean positionFree(Expr expr) {
+        switch (expr.kind()) {
+            case Expr.LITERAL:
+                return true;
+            case Expr.GROUPING:
+            case Expr.IF:
+            case Expr.TUPLE:
+            case Expr.VECTOR:
+                // the children have been interned already, if they could be
+                boolean[] free = { true };
+                expr.forEachExpr(child -> free[0] &= child != null && isShared(child));
+                return free[0];
+            default:
+                return false;
+        }
+    }
+
+    private boolean isShared(Expr expr) {
+        int mask = table.length - 1;
+        int slot = spread(expr.structuralHash()) & mask;
+        for (Expr found = table[slot]; found != null; found = table[slot]) {
+            if (found == expr)
+                return true;
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    // number of distinct nodes interned so far
+    int size() {
+        return size;
+    }
+
+    private void grow() {
+        Expr[] old = table;
+        table = new Expr[old.length * 2];
+        int mask = table.length - 1;
+        for (Expr expr : old) {
+            if (expr == null)
+                continue;
+            int slot = spread(expr.structuralHash()) & mask;
+            while (table[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = expr;
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -1,16 +1,91 @@
 package wox;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    private Environment environment = new Environment();
+    // initial value of memo slots, never visible to programs
+    static final Object UNSET = new Object();
+    // whether nodes are dispatched on with a switch over their kind rather
+    // than through `accept`, set with `-Dwox.dispatch=switch`
+    private static final boolean SWITCH = "switch".equals(System.getProperty("wox.dispatch"));
 
-    private Object evaluate(Expr expr) {
-        return expr.accept(this);
+    // top-level definitions, in front of the builtins
+    final Environment globals;
+    private Environment environment;
+    private final Output output;
+    private final Reporter reporter;
+    // null unless elements may be evaluated in parallel, see `Forking`
+    private final Forking forking;
+    // shared by all interpreters of the program
+    final Cancellation cancellation;
+
+    Interpreter() {
+        this(Output.stdout(), Wox.reporter);
+    }
+
+    Interpreter(Output output, Reporter reporter) {
+        this(output, reporter, new Globals());
+    }
+
+    // keeps the globals in `bindings`, which the caller may fill in before and
+    // read back after running
+    Interpreter(Output output, Reporter reporter, Map<String, Object> bindings) {
+        this(output, reporter, bindings, null);
+    }
+
+    // with names not found in `bindings` looked up in `outer`, if given,
+    // before the builtins
+    Interpreter(Output output, Reporter reporter, Map<String, Object> bindings, Map<String, Object> outer) {
+        this.output = output;
+        this.reporter = reporter;
+        this.forking = Forking.ENABLED ? new Forking() : null;
+        this.cancellation = new Cancellation();
+        Environment builtins = new Environment();
+        builtins.define("clock", new NativeFunction("clock", 0, arguments -> System.nanoTime() / 1e9));
+        Vectors.define(builtins);
+        Tasks.define(builtins);
+        Parallel.define(builtins);
+        globals = new Environment(outer == null ? builtins : new Environment(builtins, outer), bindings);
+        environment = globals;
+    }
+
+    // another interpreter of the same program, for a task of its own
+    Interpreter(Interpreter spawner) {
+        this(spawner, spawner.globals);
     }
 
-    private boolean isTruthy(Object object) {
+    // likewise, to evaluate in `environment`
+    Interpreter(Interpreter spawner, Environment environment) {
+        this.output = spawner.output;
+        this.reporter = spawner.reporter;
+        this.forking = spawner.forking;
+        this.cancellation = spawner.cancellation;
+        this.globals = spawner.globals;
+        this.environment = environment;
+    }
+
+    // from now on, the program runs on more than one thread
+    void share() {
+        globals.share();
+        output.shared = true;
+    }
+
+    // likewise, and so do the variables `function` closes over, which need
+    // not be the program's
+    void share(WoxCallable function) {
+        share();
+        if (function instanceof WoxFunction)
+            ((WoxFunction) function).closure().share();
+    }
+
+    Object evaluate(Expr expr) {
+        return SWITCH ? Expr.dispatch(expr, this) : expr.accept(this);
+    }
+
+    static boolean isTruthy(Object object) {
         if (object == null)
             return false;
         if (object instanceof Boolean)
@@ -18,11 +93,12 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return true;
     }
 
-    private boolean isEqual(Object left, Object right) {
+    static boolean isEqual(Object left, Object right) {
         // preserve IEEE 754 NaN inequality for doubles; `==` preserves this but
-        // `equals` does not!!!
+        // `equals` does not!!! (the operands must be unboxed first, otherwise
+        // `==` only compares references)
         if (left instanceof Double && right instanceof Double)
-            return left == right;
+            return (double) left == (double) right;
         if (left == null && right == null)
             return true;
         if (left == null)
@@ -30,51 +106,89 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return left.equals(right);
     }
 
-    private void assertNumOperand(Token operator, Object operand) {
+    private void assertNumOperand(int at, Object operand) {
         if (operand instanceof Double)
             return;
-        throw new Exception(operator, "Operand must be a number!");
+        throw new Exception(at, "Operand must be a number!");
     }
 
-    private void assertNumOperands(Token operator, Object... operands) {
+    private void assertNumOperands(int at, Object... operands) {
         for (Object operand : operands) {
-            assertNumOperand(operator, operand);
+            assertNumOperand(at, operand);
         }
     }
 
-    private void assertBoolOperand(Token operator, Object operand) {
+    private void assertBoolOperand(int at, Object operand) {
         if (operand instanceof Boolean)
             return;
-        throw new Exception(operator, "Operand must be a boolean!");
+        throw new Exception(at, "Operand must be a boolean!");
     }
 
-    private String stringify(Object object) {
-        if (object == null)
-            return "()";
-
-        if (object instanceof Double) {
-            String text = object.toString();
-            // remove decimals for otherwise-integer-like numbers
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
+    private void stringify(Object object, StringBuilder out) {
+        if (object == null) {
+            out.append("()");
+        } else if (object instanceof Double) {
+            // integer-like numbers are written without decimals
+            Numbers.format((double) object, out);
+        } else {
+            out.append(object);
         }
-        return object.toString();
     }
 
     void interpret(List<Stmt> stmts) {
         try {
-            for (Stmt stmt : stmts) {
-                execute(stmt);
-            }
+            run(stmts);
         } catch (Exception error) {
-            Wox.runtimeException(error);
+            // whatever was printed before the error comes first
+            output.flush();
+            reporter.runtimeError(error);
         }
     }
 
+    // the value of the last statement if it is an expression, leaving
+    // runtime errors to the caller
+    Object run(List<Stmt> stmts) {
+        try {
+            return executeBlock(stmts, globals);
+        } catch (Return ret) {
+            throw new Exception(ret.at, "Cannot return from top-level code!");
+        }
+    }
+
+    void flush() {
+        output.flush();
+    }
+
     private void execute(Stmt stmt) {
-        stmt.accept(this);
+        if (SWITCH) {
+            Stmt.dispatch(stmt, this);
+        } else {
+            stmt.accept(this);
+        }
+    }
+
+    // blocks evaluate to their last expression, if they end with one
+    Object executeBlock(List<Stmt> stmts, Environment envr) {
+        Environment old = this.environment;
+        Object value = null;
+        try {
+            this.environment = envr;
+            int last = stmts.size() - 1;
+            for (int i = 0; i < last; i++) {
+                execute(stmts.get(i));
+            }
+            if (last >= 0) {
+                Stmt stmt = stmts.get(last);
+                if (stmt instanceof Stmt.Expression) {
+                    value = evaluate(((Stmt.Expression) stmt).expression);
+                } else {
+                    execute(stmt);
+                }
+            }
+        } finally {
+            this.environment = old;
+        }
+        return value;
     }
 
     ///////////// VISITING STATEMENTS
@@ -88,33 +202,55 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        if (output.shared) {
+            synchronized (output) {
+                stringify(value, output.buffer());
+                output.endLine();
+            }
+        } else {
+            stringify(value, output.buffer());
+            output.endLine();
+        }
         return null;
     }
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
+        WoxFunction function = new WoxFunction(stmt, environment);
+        environment.define(stmt.name, function);
         return null;
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+        executeBlock(stmt.statements, new Environment(environment));
         return null;
     }
 
     @Override
     public Void visitLoopStmt(Stmt.Loop stmt) {
-        return null;
+        for (;;) {
+            cancellation.check();
+            executeBlock(stmt.statements, new Environment(environment));
+        }
     }
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
+        while (isTruthy(evaluate(stmt.condition))) {
+            cancellation.check();
+            execute(stmt.body);
+        }
         return null;
     }
 
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
-        return null;
+        Object value = null;
+        if (stmt.value != null)
+            value = evaluate(stmt.value);
+
+        throw new Return(stmt.at, value);
     }
 
     @Override
@@ -124,7 +260,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.text, value);
+        environment.define(stmt.name, value);
         return null;
     }
 
@@ -147,15 +283,13 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = expr.right;
-        Token operator = expr.operator;
-
-        switch (expr.operator.type) {
+        Object right = evaluate(expr.right);
+        switch (expr.operator) {
             case MINUS:
-                assertNumOperand(operator, right);
+                assertNumOperand(expr.at, right);
                 return -(double) right;
             case BANG:
-                assertBoolOperand(operator, right);
+                assertBoolOperand(expr.at, right);
                 return !isTruthy(right);
             // unreachable
             default:
@@ -168,41 +302,41 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
-        switch (expr.operator.type) {
+        switch (expr.operator) {
             case BANG_EQUAL:
                 return !isEqual(left, right);
             case EQUAL_EQUAL:
                 return isEqual(left, right);
 
             case GREATER:
-                assertNumOperands(expr.operator, left, right);
+                assertNumOperands(expr.at, left, right);
                 return (double) left > (double) right;
             case GREATER_EQUAL:
-                assertNumOperands(expr.operator, left, right);
+                assertNumOperands(expr.at, left, right);
                 return (double) left >= (double) right;
             case LESS:
-                assertNumOperands(expr.operator, left, right);
+                assertNumOperands(expr.at, left, right);
                 return (double) left < (double) right;
             case LESS_EQUAL:
-                assertNumOperands(expr.operator, left, right);
+                assertNumOperands(expr.at, left, right);
                 return (double) left <= (double) right;
 
             case MINUS:
-                assertNumOperands(expr.operator, left, right);
+                assertNumOperands(expr.at, left, right);
                 return (double) left - (double) right;
             case SLASH:
-                assertNumOperands(expr.operator, left, right);
+                assertNumOperands(expr.at, left, right);
                 return (double) left / (double) right;
             case STAR:
-                assertNumOperands(expr.operator, left, right);
+                assertNumOperands(expr.at, left, right);
                 return (double) left * (double) right;
             case PLUS:
-                assertNumOperands(expr.operator, left, right);
+                assertNumOperands(expr.at, left, right);
                 return (double) left + (double) right;
             case PLUS_PLUS:
                 if (left instanceof String && right instanceof String)
                     return (String) left + (String) right;
-                throw new Exception(expr.operator, "Append `++` only currently defined for strings!");
+                throw new Exception(expr.at, "Append `++` only currently defined for strings!");
 
             // Unreachable
             default:
@@ -214,13 +348,41 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
-        environment.assign(expr.name, value);
+        environment.assign(expr.name, expr.at, value);
         return value;
     }
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        return null;
+        cancellation.check();
+        Object callee = evaluate(expr.callee);
+
+        List<Object> arguments;
+        if (forking != null && expr.arguments.size() > 1) {
+            arguments = Arrays.asList(forking.evaluate(this, environment, expr, expr.arguments));
+        } else {
+            arguments = new ArrayList<>();
+            for (Expr argument : expr.arguments) {
+                arguments.add(evaluate(argument));
+            }
+        }
+
+        if (!(callee instanceof WoxCallable)) {
+            throw new Exception(expr.at, "Can only call functions and classes!");
+        }
+
+        WoxCallable function = (WoxCallable) callee;
+        if (arguments.size() != function.arity()) {
+            throw new Exception(expr.at,
+                    "Expected " + function.arity() + " arguments but got " + arguments.size() + "!");
+        }
+
+        try {
+            return function.call(this, arguments);
+        } catch (Misuse error) {
+            // a native function was given arguments it cannot work with
+            throw new Exception(expr.at, error.getMessage());
+        }
     }
 
     @Override
@@ -252,6 +414,17 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return evaluate(expr.when_false);
     }
 
+    @Override
+    public Object visitInlineExpr(Expr.Inline expr) {
+        // the inlined body is only valid for as long as the callee is still
+        // bound to the function it was copied from
+        Object callee = globals.lookup(expr.callee);
+        if (callee instanceof WoxFunction && ((WoxFunction) callee).declaration.at == expr.declared) {
+            return evaluate(expr.body);
+        }
+        return evaluate(expr.call);
+    }
+
     @Override
     public Object visitLetExpr(Expr.Let expr) {
         Environment curr = this.environment;
@@ -259,7 +432,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         Object value = null;
         try {
             this.environment = envr;
-            envr.define(expr.variable.text, evaluate(expr.definition));
+            envr.define(expr.variable, evaluate(expr.definition));
             value = evaluate(expr.body);
         } finally {
             this.environment = curr;
@@ -267,6 +440,16 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return value;
     }
 
+    @Override
+    public Object visitMemoExpr(Expr.Memo expr) {
+        Object value = environment.get(expr.slot, 0);
+        if (value == UNSET) {
+            value = evaluate(expr.expression);
+            environment.assign(expr.slot, 0, value);
+        }
+        return value;
+    }
+
     @Override
     public Object visitSetExpr(Expr.Set expr) {
         return null;
@@ -284,6 +467,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitTupleExpr(Expr.Tuple expr) {
+        if (forking != null && expr.elements.size() > 1)
+            return new ArrayList<>(Arrays.asList(forking.evaluate(this, environment, expr, expr.elements)));
         List<Object> tuple = new ArrayList<>();
         for (Expr ex : expr.elements) {
             tuple.add(evaluate(ex));
@@ -293,12 +478,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return environment.get(expr.name);
+        return environment.get(expr.name, expr.at);
     }
 
     @Override
     public Object visitVectorExpr(Expr.Vector expr) {
-        List<Object> vec = new ArrayList<>();
+        // stays unboxed for as long as every element is a number
+        WoxVector vec = new WoxVector(expr.elements.size());
+        if (forking != null && expr.elements.size() > 1) {
+            for (Object value : forking.evaluate(this, environment, expr, expr.elements)) {
+                vec.add(value);
+            }
+            return vec;
+        }
         for (Expr ex : expr.elements) {
             vec.add(evaluate(ex));
         }
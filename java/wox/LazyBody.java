@@ -0,0 +1,116 @@
+package wox;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * The body of a function that has only been pre-parsed: all that is known is
+ * the range of tokens between its braces. The statements are parsed the first
+ * time the body is looked at, e.g., on the first call, and cached from then
+ * on.
+ *
+ * Passes that run over a program before its bodies are parsed queue
+ * themselves up with `then`, and are applied right after the parse.
+ */
+class LazyBody extends AbstractList<Stmt> {
+    private final String name;
+    private final int at;
+    private final List<Token> tokens;
+    private final Source source;
+    // where syntax errors in the body go, once it is parsed
+    private final Reporter reporter;
+    private final Interner interner;
+    private final int start;
+    private final int end;
+    // the body as pre-parsed, whose plain parse is shared by every body
+    // derived from it with `then`
+    private final LazyBody origin;
+    private final List<UnaryOperator<List<Stmt>>> passes;
+    private volatile List<Stmt> parsed = null;
+    // syntax errors are reported by the first attempt only
+    private volatile boolean failed = false;
+
+    LazyBody(String name, int at, List<Token> tokens, Source source, Reporter reporter, Interner interner,
+            int start, int end) {
+        this(name, at, tokens, source, reporter, interner, start, end, null, new ArrayList<>());
+    }
+
+    private LazyBody(String name, int at, List<Token> tokens, Source source, Reporter reporter,
+            Interner interner, int start, int end, LazyBody origin, List<UnaryOperator<List<Stmt>>> passes) {
+        this.name = name;
+        this.at = at;
+        this.tokens = tokens;
+        this.source = source;
+        this.reporter = reporter;
+        this.interner = interner;
+        this.start = start;
+        this.end = end;
+        this.origin = origin;
+        this.passes = passes;
+    }
+
+    boolean isParsed() {
+        return parsed != null;
+    }
+
+    // number of tokens in the body, a cheap upper bound on its size
+    int width() {
+        return end - start;
+    }
+
+    LazyBody then(UnaryOperator<List<Stmt>> pass) {
+        List<UnaryOperator<List<Stmt>>> queued = new ArrayList<>(passes);
+        queued.add(pass);
+        return new LazyBody(name, at, tokens, source, reporter, interner, start, end,
+                origin == null ? this : origin, queued);
+    }
+
+    private List<Stmt> force() {
+        List<Stmt> stmts = parsed;
+        if (stmts != null)
+            return stmts;
+
+        // bodies of the same source share their passes' state, so they are
+        // parsed one at a time
+        synchronized (tokens) {
+            if (parsed == null) {
+                parsed = origin == null ? parse() : transform(origin.force());
+            }
+            return parsed;
+        }
+    }
+
+    private List<Stmt> parse() {
+        if (failed)
+            throw new Exception(at, "Syntax error in the body of `" + name + "`.");
+
+        // the interner is shared with the rest of the source, which is safe
+        // as bodies are parsed one at a time
+        Parser parser = new Parser(tokens, source, false, reporter, interner);
+        List<Stmt> stmts = parser.body(start);
+        if (parser.failed) {
+            failed = true;
+            throw new Exception(at, "Syntax error in the body of `" + name + "`.");
+        }
+        return transform(stmts);
+    }
+
+    private List<Stmt> transform(List<Stmt> stmts) {
+        for (UnaryOperator<List<Stmt>> pass : passes) {
+            stmts = pass.apply(stmts);
+        }
+        return stmts;
+    }
+
+    @Override
+    public Stmt get(int index) {
+        return force().get(index);
+    }
+
+    @Override
+    public int size() {
+        return force().size();
+    }
+}
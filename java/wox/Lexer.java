@@ -3,34 +3,77 @@ package wox;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.function.IntPredicate;
 
 // static imports are considered bad style by many. comment out if not wanting
 // to preface token types with the enum name all over the lexer and parser...
 // import static com.lctr.wox.TokenType.*
 
+/**
+ * Turns a source into tokens. Comments and the bodies of strings are skipped
+ * with `String.indexOf`, which HotSpot compiles to vector instructions
+ * (SSE/AVX, NEON), so long comments and string literals are scanned many
+ * characters at a time. Runs of whitespace are skipped in a tight loop.
+ */
 public class Lexer {
     private final String source;
     private final List<Token> tokens = new ArrayList<>();
+    private final Reporter reporter;
     private static final Map<String, TokenType> keywords = TokenType.keywords();
+    // offsets of the characters that could not be lexed
+    final List<Integer> errors = new ArrayList<>();
     private int start = 0;
     private int current = 0;
     private int line = 1;
-    private int column = 0;
+    // offset of the first character of the current line
+    private int lineStart = 0;
+    // where the token being lexed begins, as strings may span lines
+    private int startLine = 1;
+    private int startColumn = 1;
 
     Lexer(String source) {
+        this(source, 0, 1, Wox.reporter);
+    }
+
+    // lexes `source` starting at offset `from`, which must not be inside of
+    // a token, and is on line `line`
+    Lexer(String source, int from, int line, Reporter reporter) {
         this.source = source;
+        this.reporter = reporter;
+        this.current = from;
+        this.line = line;
+        this.lineStart = source.lastIndexOf('\n', from - 1) + 1;
     }
 
     List<Token> lex() {
+        lexUntil(offset -> false);
+        tokens.add(eof());
+        return tokens;
+    }
+
+    // lexes up to the first token starting at an offset accepted by `stop`, or
+    // to the end of the source, without adding the `EOF` token
+    List<Token> lexUntil(IntPredicate stop) {
         while (!isDone()) {
             start = current;
+            if (stop.test(start))
+                break;
+            startLine = line;
+            startColumn = start - lineStart + 1;
             nextToken();
         }
-
-        tokens.add(new Token(TokenType.EOF, "", null, line, column));
         return tokens;
     }
 
+    // where lexing stopped
+    int position() {
+        return current;
+    }
+
+    Token eof() {
+        return new Token(TokenType.EOF, "", null, line, current - lineStart + 1, current);
+    }
+
     private void nextToken() {
         char c = advance();
         switch (c) {
@@ -45,6 +88,7 @@ public class Lexer {
                 break;
             case '}':
                 addToken(TokenType.CURLY_R);
+                break;
             case '[':
                 addToken(TokenType.BRACK_L);
                 break;
@@ -83,9 +127,9 @@ public class Lexer {
                 break;
             case '/':
                 if (match('/')) {
-                    // line comment
-                    while (peek() != '\n' && !isDone())
-                        advance();
+                    // line comment, up to but not including the newline
+                    int end = source.indexOf('\n', current);
+                    current = end < 0 ? source.length() : end;
                 } else {
                     addToken(TokenType.SLASH);
                 }
@@ -94,13 +138,13 @@ public class Lexer {
             case ' ':
             case '\r':
             case '\t':
-                column++;
                 // ignoring whitespace
+                whitespace();
                 break;
 
             case '\n':
-                line++;
-                column = 0;
+                newline();
+                whitespace();
                 break;
 
             case '"':
@@ -113,12 +157,18 @@ public class Lexer {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Wox.error(line, column, "Unexpected character.");
+                    errors.add(start);
+                    reporter.error(line, current - lineStart, "Unexpected character.");
                 }
                 break;
         }
     }
 
+    private void newline() {
+        line++;
+        lineStart = current;
+    }
+
     private boolean isDone() {
         return current >= source.length();
     }
@@ -155,20 +205,37 @@ public class Lexer {
 
     private void addToken(TokenType type, Object literal) {
         String txt = source.substring(start, current);
-        tokens.add(new Token(type, txt, literal, line, column));
+        tokens.add(new Token(type, txt, literal, startLine, startColumn, start));
     }
 
-    private void string() {
-        while (peek() != '"' && !isDone()) {
-            if (peek() == '\n') {
-                column = 0;
-                line++;
+    // skips the rest of a run of blanks and newlines at once, rather than
+    // going through `nextToken` for every character
+    private void whitespace() {
+        while (current < source.length()) {
+            char c = source.charAt(current);
+            if (c == '\n') {
+                current++;
+                newline();
+            } else if (c == ' ' || c == '\r' || c == '\t') {
+                current++;
+            } else {
+                break;
             }
-            advance();
         }
+    }
+
+    private void string() {
+        int close = source.indexOf('"', current);
+        int end = close < 0 ? source.length() : close;
+        for (int nl = source.indexOf('\n', current); nl >= 0 && nl < end; nl = source.indexOf('\n', nl + 1)) {
+            current = nl + 1;
+            newline();
+        }
+        current = end;
 
         if (isDone()) {
-            Wox.error(line, "Unterminated string.");
+            errors.add(start);
+            reporter.error(startLine, startColumn, "Unterminated string.");
             return;
         }
 
@@ -196,11 +263,11 @@ public class Lexer {
                 advance();
         }
 
-        addToken(TokenType.NUMBER, Double.parseDouble(source.substring(start, current)));
+        addToken(TokenType.NUMBER, Numbers.parse(source, start, current));
     }
 
     private boolean isAlpha(char c) {
-        return (c >= 'a' && c < 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
     }
 
     private boolean isAlphaNumeric(char c) {
@@ -0,0 +1,400 @@
+package wox;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loop-invariant code motion and common subexpression elimination.
+ *
+ * Both reuse a pure expression over a region of code that cannot change any
+ * of its inputs: the whole of a `while` or `loop` (for an invariant
+ * expression), or a run of statements in a block or expressions in a `do`
+ * (for an expression occurring more than once). Every occurrence in the
+ * region is replaced by an `Expr.Memo` over a slot declared right before the
+ * region. The first occurrence to be evaluated fills the slot and later ones
+ * read it back.
+ *
+ * Since the value is only computed where the original code would have computed
+ * it, nothing is evaluated speculatively. A loop that never runs still
+ * computes nothing, and runtime errors are raised at the same place. Regions
+ * containing calls are left alone, because a callee may assign anything.
+ */
+class Memoizer extends Rewriter {
+    // smallest expression worth a slot, counted in nodes
+    static final int MIN_SIZE = 3;
+
+    private final Effects.Analysis effects = new Effects.Analysis();
+    private final Map<Expr, String> keys = new IdentityHashMap<>();
+    private int slots = 0;
+
+    List<Stmt> memoize(List<Stmt> stmts) {
+        return common(rewriteStmts(stmts));
+    }
+
+    private String slot() {
+        return ("$memo" + slots++).intern();
+    }
+
+    // no identifier in a program starts with `$`
+    static boolean isSlot(String name) {
+        return name.startsWith("$memo");
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = common(rewriteStmts(stmt.statements));
+        if (statements == stmt.statements)
+            return stmt;
+        return new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        if (isUnparsed(stmt))
+            return defer(stmt);
+        List<Stmt> body = common(rewriteStmts(stmt.body));
+        if (body == stmt.body)
+            return stmt;
+        return new Stmt.Function(stmt.name, stmt.at, stmt.params, body);
+    }
+
+    @Override
+    public Stmt visitLoopStmt(Stmt.Loop stmt) {
+        List<Stmt> statements = common(rewriteStmts(stmt.statements));
+        Stmt loop = statements == stmt.statements ? stmt : new Stmt.Loop(statements);
+        return invariant(loop, Effects.of(statements));
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Stmt loop = super.visitWhileStmt(stmt);
+        Stmt.While rewritten = (Stmt.While) loop;
+        Effects total = Effects.of(rewritten.body);
+        total.add(effects.of(rewritten.condition));
+        return invariant(loop, total);
+    }
+
+    @Override
+    public Expr visitDoExpr(Expr.Do expr) {
+        List<Expr> body = rewriteExprs(expr.body);
+
+        List<Effects> each = new ArrayList<>();
+        List<Candidate> found = new ArrayList<>();
+        for (Expr ex : body) {
+            each.add(effects.of(ex));
+            found.add(new Candidate(found.size(), false).collect(ex));
+        }
+
+        Map<String, Region> regions = regions(found, each);
+        if (regions.isEmpty()) {
+            if (body == expr.body)
+                return expr;
+            return new Expr.Do(body);
+        }
+
+        List<Expr> memoized = new ArrayList<>();
+        for (int i = 0; i < body.size(); i++) {
+            memoized.add(new Replace(regions, i).rewrite(body.get(i)));
+        }
+        Expr result = new Expr.Do(memoized);
+        for (Region region : regions.values()) {
+            if (region.used)
+                result = new Expr.Let(region.slot, 0, new Expr.Literal(Interpreter.UNSET), result);
+        }
+        return result;
+    }
+
+    // hoists expressions that no iteration of a loop can change
+    private Stmt invariant(Stmt loop, Effects total) {
+        if (total.calls)
+            return loop;
+
+        Candidate found = new Candidate(0, true).collect(loop);
+        Map<String, Region> regions = new LinkedHashMap<>();
+        for (Map.Entry<String, Expr> entry : found.exprs.entrySet()) {
+            if (!effects.of(entry.getValue()).dependsOn(total)) {
+                regions.put(entry.getKey(), new Region(slot(), 0, 0));
+            }
+        }
+        if (regions.isEmpty())
+            return loop;
+
+        Stmt rewritten = new Replace(regions, 0).rewrite(loop);
+        List<Stmt> block = new ArrayList<>();
+        for (Region region : regions.values()) {
+            if (region.used)
+                block.add(new Stmt.Var(region.slot, 0, new Expr.Literal(Interpreter.UNSET)));
+        }
+        if (block.isEmpty())
+            return loop;
+        block.add(rewritten);
+        return new Stmt.Block(block);
+    }
+
+    // reuses expressions occurring more than once in a sequence of statements
+    private List<Stmt> common(List<Stmt> stmts) {
+        List<Effects> each = new ArrayList<>();
+        List<Candidate> found = new ArrayList<>();
+        for (Stmt stmt : stmts) {
+            each.add(Effects.of(stmt));
+            found.add(new Candidate(found.size(), false).collect(stmt));
+        }
+
+        Map<String, Region> regions = regions(found, each);
+        if (regions.isEmpty())
+            return stmts;
+
+        List<Stmt> result = new ArrayList<>();
+        for (int i = 0; i < stmts.size(); i++) {
+            Replace replace = new Replace(regions, i);
+            Stmt stmt = replace.rewrite(stmts.get(i));
+            for (Region region : regions.values()) {
+                if (region.first == i && region.used)
+                    result.add(new Stmt.Var(region.slot, 0, new Expr.Literal(Interpreter.UNSET)));
+            }
+            result.add(stmt);
+        }
+        return result;
+    }
+
+    // picks the expressions occurring at least twice whose inputs no element
+    // between the first and last occurrence may change
+    private Map<String, Region> regions(List<Candidate> found, List<Effects> each) {
+        Map<String, Integer> first = new LinkedHashMap<>();
+        Map<String, Integer> last = new LinkedHashMap<>();
+        Map<String, Integer> count = new LinkedHashMap<>();
+        Map<String, Expr> exprs = new LinkedHashMap<>();
+        for (Candidate candidate : found) {
+            for (Map.Entry<String, Integer> entry : candidate.counts.entrySet()) {
+                String key = entry.getKey();
+                first.putIfAbsent(key, candidate.index);
+                last.put(key, candidate.index);
+                count.merge(key, entry.getValue(), Integer::sum);
+                exprs.putIfAbsent(key, candidate.exprs.get(key));
+            }
+        }
+
+        Map<String, Region> regions = new LinkedHashMap<>();
+        for (String key : exprs.keySet()) {
+            if (count.get(key) < 2)
+                continue;
+            Effects needs = effects.of(exprs.get(key));
+            boolean clobbered = false;
+            for (int i = first.get(key); i <= last.get(key) && !clobbered; i++) {
+                clobbered = needs.dependsOn(each.get(i));
+            }
+            if (!clobbered)
+                regions.put(key, new Region(slot(), first.get(key), last.get(key)));
+        }
+        return regions;
+    }
+
+    // structural identity of an expression, ignoring source positions
+    private String keyOf(Expr expr) {
+        String key = keys.get(expr);
+        if (key == null) {
+            StringBuilder builder = new StringBuilder();
+            new Keys(builder).rewrite(expr);
+            key = builder.toString();
+            keys.put(expr, key);
+        }
+        return key;
+    }
+
+    private static class Region {
+        final String slot;
+        final int first;
+        final int last;
+        boolean used = false;
+
+        Region(String slot, int first, int last) {
+            this.slot = slot;
+            this.first = first;
+            this.last = last;
+        }
+    }
+
+    /**
+     * Collects the pure subexpressions of one element of a region that are
+     * large enough to be worth reusing. Nested declarations are skipped, as
+     * their bodies do not run as part of the region.
+     */
+    private class Candidate extends Rewriter {
+        final int index;
+        // whether to look inside already memoized expressions, which only pays
+        // off when hoisting them out of yet another loop
+        final boolean nested;
+        final Map<String, Integer> counts = new LinkedHashMap<>();
+        final Map<String, Expr> exprs = new LinkedHashMap<>();
+
+        Candidate(int index, boolean nested) {
+            this.index = index;
+            this.nested = nested;
+        }
+
+        Candidate collect(Stmt stmt) {
+            rewrite(stmt);
+            return this;
+        }
+
+        Candidate collect(Expr expr) {
+            rewrite(expr);
+            return this;
+        }
+
+        @Override
+        Expr rewrite(Expr expr) {
+            if (expr == null)
+                return null;
+            Effects effects = Memoizer.this.effects.of(expr);
+            if (effects.isPure() && effects.size >= MIN_SIZE) {
+                String key = keyOf(expr);
+                counts.merge(key, 1, Integer::sum);
+                exprs.putIfAbsent(key, expr);
+            }
+            return super.rewrite(expr);
+        }
+
+        @Override
+        public Stmt visitClassStmt(Stmt.Class stmt) {
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitFunctionStmt(Stmt.Function stmt) {
+            return stmt;
+        }
+
+        @Override
+        public Expr visitMemoExpr(Expr.Memo expr) {
+            if (nested)
+                return super.visitMemoExpr(expr);
+            return expr;
+        }
+    }
+
+    /**
+     * Replaces the outermost occurrences of the chosen expressions within one
+     * element of a region.
+     */
+    private class Replace extends Rewriter {
+        private final Map<String, Region> regions;
+        private final int index;
+
+        Replace(Map<String, Region> regions, int index) {
+            this.regions = regions;
+            this.index = index;
+        }
+
+        private Region regionOf(Expr expr) {
+            if (!keys.containsKey(expr))
+                return null;
+            Region region = regions.get(keys.get(expr));
+            if (region != null && region.first <= index && index <= region.last) {
+                region.used = true;
+                return region;
+            }
+            return null;
+        }
+
+        @Override
+        Expr rewrite(Expr expr) {
+            Region region = expr == null ? null : regionOf(expr);
+            if (region != null)
+                return new Expr.Memo(region.slot, expr);
+            return super.rewrite(expr);
+        }
+
+        // an inner loop's memo is superseded by the outer one
+        @Override
+        public Expr visitMemoExpr(Expr.Memo expr) {
+            Region region = regionOf(expr.expression);
+            if (region != null)
+                return new Expr.Memo(region.slot, expr.expression);
+            return super.visitMemoExpr(expr);
+        }
+
+        @Override
+        public Stmt visitClassStmt(Stmt.Class stmt) {
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitFunctionStmt(Stmt.Function stmt) {
+            return stmt;
+        }
+    }
+
+    /**
+     * Writes out an expression in prefix form, with operators and names but
+     * without tokens' positions.
+     */
+    private static class Keys extends Rewriter {
+        private final StringBuilder builder;
+
+        Keys(StringBuilder builder) {
+            this.builder = builder;
+        }
+
+        @Override
+        Expr rewrite(Expr expr) {
+            if (expr == null) {
+                builder.append("nil ");
+                return null;
+            }
+            builder.append('(').append(expr.getClass().getSimpleName()).append(' ');
+            super.rewrite(expr);
+            builder.append(") ");
+            return expr;
+        }
+
+        @Override
+        public Expr visitBinaryExpr(Expr.Binary expr) {
+            builder.append(expr.operator).append(' ');
+            return super.visitBinaryExpr(expr);
+        }
+
+        @Override
+        public Expr visitGetExpr(Expr.Get expr) {
+            builder.append(expr.name).append(' ');
+            return super.visitGetExpr(expr);
+        }
+
+        @Override
+        public Expr visitLiteralExpr(Expr.Literal expr) {
+            // strings are length-prefixed so their contents cannot be mistaken
+            // for structure
+            Object value = expr.value;
+            if (value != null) {
+                String text = value.toString();
+                builder.append(value.getClass().getSimpleName()).append(':').append(text.length()).append(':');
+                builder.append(text);
+            } else {
+                builder.append("nil");
+            }
+            builder.append(' ');
+            return expr;
+        }
+
+        @Override
+        public Expr visitSuperExpr(Expr.Super expr) {
+            builder.append(expr.method).append(' ');
+            return expr;
+        }
+
+        @Override
+        public Expr visitUnaryExpr(Expr.Unary expr) {
+            builder.append(expr.operator).append(' ');
+            return super.visitUnaryExpr(expr);
+        }
+
+        @Override
+        public Expr visitVariableExpr(Expr.Variable expr) {
+            builder.append(expr.name).append(' ');
+            return expr;
+        }
+    }
+}
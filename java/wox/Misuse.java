@@ -0,0 +1,14 @@
+package wox;
+
+// thrown by a native function given arguments it cannot work with, which the
+// interpreter reports as a runtime error at the call
+@SuppressWarnings("serial")
+class Misuse extends RuntimeException {
+    Misuse(String message) {
+        super(message);
+    }
+
+    Misuse(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,49 @@
+package wox;
+
+import java.util.List;
+
+/**
+ * A function implemented in Java. Misuse, such as an argument of the wrong
+ * type, is signalled with a `Misuse`, which the interpreter reports as a
+ * runtime error at the call.
+ *
+ * A native is pure if calling it changes nothing and depends on nothing but
+ * its arguments, which makes it fit to call from several threads at once,
+ * see `Parallel`. Natives are not unless they say so.
+ */
+class NativeFunction implements WoxCallable {
+    interface Body {
+        Object call(List<Object> arguments);
+    }
+
+    final String name;
+    private final int arity;
+    private final Body body;
+    final boolean pure;
+
+    NativeFunction(String name, int arity, Body body) {
+        this(name, arity, false, body);
+    }
+
+    NativeFunction(String name, int arity, boolean pure, Body body) {
+        this.name = name;
+        this.arity = arity;
+        this.pure = pure;
+        this.body = body;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return body.call(arguments);
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn " + name + ">";
+    }
+}
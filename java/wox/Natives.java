@@ -0,0 +1,306 @@
+package wox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleSupplier;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Java functions for programs to call, registered by the host under the
+ * names programs know them by, and defined into the globals of a `Context`
+ * or the bindings of a `PreparedScript` or script engine.
+ *
+ * A method handle is adapted to taking and returning Wox values once, when
+ * it is registered, so that a call does no more than check its arguments and
+ * invoke the adapted handle. Parameters may be `double`, `float`, `int`,
+ * `long`, `boolean`, `double[]` (taking a vector of numbers, copied) or any
+ * reference type. Results of any numeric type come back as `Double`s,
+ * `double[]` as a vector of numbers (copied), characters as strings and
+ * `void` as `nil`.
+ * Handles of type `(double)double` and `(double, double)double`, and the
+ * `java.util.function` interfaces over doubles, skip the adaptation and are
+ * called with unboxed arguments right away.
+ *
+ * Arguments of the wrong type, and anything thrown by the function itself
+ * other than an `Error`, end the program with a runtime error at the call.
+ * Nothing is known about what they touch, so functions calling them are
+ * never applied in parallel.
+ */
+public class Natives {
+    private static final MethodType UNARY = MethodType.methodType(double.class, double.class);
+    private static final MethodType BINARY = MethodType.methodType(double.class, double.class, double.class);
+
+    private static final MethodHandle NUMBER;
+    private static final MethodHandle INTEGER;
+    private static final MethodHandle LONG;
+    private static final MethodHandle BOOLEAN;
+    private static final MethodHandle NUMBERS;
+    private static final MethodHandle INSTANCE;
+    private static final MethodHandle RESULT;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            NUMBER = check(lookup, "number", double.class);
+            INTEGER = check(lookup, "integer", int.class);
+            LONG = check(lookup, "longInteger", long.class);
+            BOOLEAN = check(lookup, "bool", boolean.class);
+            NUMBERS = check(lookup, "numbers", double[].class);
+            INSTANCE = lookup.findStatic(Natives.class, "instance",
+                    MethodType.methodType(Object.class, String.class, int.class, Class.class, Object.class));
+            RESULT = lookup.findStatic(Natives.class, "result", MethodType.methodType(Object.class, Object.class));
+        } catch (ReflectiveOperationException error) {
+            throw new ExceptionInInitializerError(error);
+        }
+    }
+
+    private interface Invoker {
+        Object call(List<Object> arguments) throws Throwable;
+    }
+
+    private final Map<String, NativeFunction> functions = new LinkedHashMap<>();
+
+    public Natives register(String name, DoubleSupplier function) {
+        return add(guarded(name, 0, arguments -> function.getAsDouble()));
+    }
+
+    public Natives register(String name, DoubleUnaryOperator function) {
+        return add(guarded(name, 1, arguments -> function.applyAsDouble(number(name, 0, arguments.get(0)))));
+    }
+
+    public Natives register(String name, DoubleBinaryOperator function) {
+        return add(guarded(name, 2, arguments -> function.applyAsDouble(
+                number(name, 0, arguments.get(0)), number(name, 1, arguments.get(1)))));
+    }
+
+    // a static method, which must be accessible to everyone
+    public Natives register(String name, Method method) {
+        if (!Modifier.isStatic(method.getModifiers()))
+            throw new IllegalArgumentException("not a static method: " + method);
+        try {
+            return register(name, MethodHandles.publicLookup().unreflect(method));
+        } catch (IllegalAccessException error) {
+            throw new IllegalArgumentException("not accessible: " + method, error);
+        }
+    }
+
+    public Natives register(String name, MethodHandle handle) {
+        if (handle.isVarargsCollector())
+            handle = handle.asFixedArity();
+        MethodType type = handle.type();
+        if (type.equals(UNARY))
+            return add(unary(name, handle));
+        if (type.equals(BINARY))
+            return add(binary(name, handle));
+
+        // every argument from `Object`, the result to `Object`
+        MethodHandle adapted = handle;
+        for (int i = 0; i < type.parameterCount(); i++) {
+            adapted = MethodHandles.filterArguments(adapted, i, parameter(name, i, type.parameterType(i)));
+        }
+        adapted = result(adapted);
+        return add(generic(name, adapted));
+    }
+
+    public void define(Map<String, Object> bindings) {
+        bindings.putAll(functions);
+    }
+
+    void define(Environment globals) {
+        for (NativeFunction function : functions.values()) {
+            globals.define(function.name, function);
+        }
+    }
+
+    private Natives add(NativeFunction function) {
+        functions.put(function.name, function);
+        return this;
+    }
+
+    ///////////// ADAPTATION, done once per function
+
+    private static NativeFunction unary(String name, MethodHandle handle) {
+        return new NativeFunction(name, 1, arguments -> {
+            double x = number(name, 0, arguments.get(0));
+            try {
+                return (double) handle.invokeExact(x);
+            } catch (Throwable error) {
+                throw failed(name, error);
+            }
+        });
+    }
+
+    private static NativeFunction binary(String name, MethodHandle handle) {
+        return new NativeFunction(name, 2, arguments -> {
+            double x = number(name, 0, arguments.get(0));
+            double y = number(name, 1, arguments.get(1));
+            try {
+                return (double) handle.invokeExact(x, y);
+            } catch (Throwable error) {
+                throw failed(name, error);
+            }
+        });
+    }
+
+    // the functional interfaces throw nothing checked, but may still fail
+    private static NativeFunction guarded(String name, int arity, NativeFunction.Body body) {
+        return new NativeFunction(name, arity, arguments -> {
+            try {
+                return body.call(arguments);
+            } catch (RuntimeException error) {
+                throw failed(name, error);
+            }
+        });
+    }
+
+    // `adapted` takes and returns nothing but `Object`s; the common arities
+    // are invoked without an array
+    private static NativeFunction generic(String name, MethodHandle adapted) {
+        int arity = adapted.type().parameterCount();
+        Invoker body;
+        switch (arity) {
+            case 0:
+                body = arguments -> (Object) adapted.invokeExact();
+                break;
+            case 1:
+                body = arguments -> (Object) adapted.invokeExact(arguments.get(0));
+                break;
+            case 2:
+                body = arguments -> (Object) adapted.invokeExact(arguments.get(0), arguments.get(1));
+                break;
+            case 3:
+                body = arguments -> (Object) adapted.invokeExact(arguments.get(0), arguments.get(1),
+                        arguments.get(2));
+                break;
+            default:
+                MethodHandle spread = adapted.asSpreader(Object[].class, arity);
+                body = arguments -> (Object) spread.invokeExact(arguments.toArray());
+        }
+        return new NativeFunction(name, arity, arguments -> {
+            try {
+                return body.call(arguments);
+            } catch (Throwable error) {
+                throw failed(name, error);
+            }
+        });
+    }
+
+    // converts the `index`th argument from a Wox value
+    private static MethodHandle parameter(String name, int index, Class<?> type) {
+        MethodHandle check;
+        if (type == double.class || type == float.class) {
+            check = NUMBER;
+        } else if (type == int.class) {
+            check = INTEGER;
+        } else if (type == long.class) {
+            check = LONG;
+        } else if (type == boolean.class) {
+            check = BOOLEAN;
+        } else if (type == double[].class) {
+            check = NUMBERS;
+        } else if (type.isPrimitive()) {
+            throw new IllegalArgumentException("cannot pass Wox values as " + type + " to `" + name + "`");
+        } else {
+            check = MethodHandles.insertArguments(INSTANCE, 2, type);
+        }
+        check = MethodHandles.insertArguments(check, 0, name, index);
+        // narrows to `float`, or casts to a type already checked for
+        return MethodHandles.explicitCastArguments(check, MethodType.methodType(type, Object.class));
+    }
+
+    // `void` to `nil`, numbers to `Double`s, `double[]` to vectors and
+    // characters to strings
+    private static MethodHandle result(MethodHandle handle) {
+        Class<?> type = handle.type().returnType();
+        if (type == char.class || !type.isPrimitive() && type != Double.class && type != String.class) {
+            handle = handle.asType(handle.type().changeReturnType(Object.class));
+            handle = MethodHandles.filterReturnValue(handle, RESULT);
+        } else if (type.isPrimitive() && type != void.class && type != boolean.class) {
+            handle = handle.asType(handle.type().changeReturnType(double.class));
+        }
+        return handle.asType(handle.type().changeReturnType(Object.class));
+    }
+
+    ///////////// CALLS
+
+    private static RuntimeException failed(String name, Throwable error) {
+        if (error instanceof Error)
+            throw (Error) error;
+        if (error instanceof Misuse)
+            return (Misuse) error;
+        // how a host function says it was given the wrong arguments
+        if (error instanceof IllegalArgumentException && error.getMessage() != null)
+            return new Misuse(error.getMessage(), error);
+        return new Misuse("`" + name + "` failed: " + error, error);
+    }
+
+    private static MethodHandle check(MethodHandles.Lookup lookup, String check, Class<?> type)
+            throws ReflectiveOperationException {
+        return lookup.findStatic(Natives.class, check,
+                MethodType.methodType(type, String.class, int.class, Object.class));
+    }
+
+    private static Misuse misuse(String name, int index, String expected) {
+        return new Misuse(
+                "Argument " + (index + 1) + " of `" + name + "` must be " + expected + "!");
+    }
+
+    private static double number(String name, int index, Object value) {
+        if (!(value instanceof Double))
+            throw misuse(name, index, "a number");
+        return (double) value;
+    }
+
+    private static int integer(String name, int index, Object value) {
+        double number = number(name, index, value);
+        if (number != (int) number)
+            throw misuse(name, index, "a whole number");
+        return (int) number;
+    }
+
+    private static long longInteger(String name, int index, Object value) {
+        double number = number(name, index, value);
+        if (number != (long) number)
+            throw misuse(name, index, "a whole number");
+        return (long) number;
+    }
+
+    private static boolean bool(String name, int index, Object value) {
+        if (!(value instanceof Boolean))
+            throw misuse(name, index, "a boolean");
+        return (boolean) value;
+    }
+
+    private static double[] numbers(String name, int index, Object value) {
+        if (!(value instanceof WoxVector) || !((WoxVector) value).isNumeric())
+            throw misuse(name, index, "a vector of numbers");
+        WoxVector vector = (WoxVector) value;
+        return Arrays.copyOf(vector.numbers(), vector.size());
+    }
+
+    private static Object instance(String name, int index, Class<?> type, Object value) {
+        if (value != null && !type.isInstance(value))
+            throw misuse(name, index, "a " + type.getSimpleName());
+        return value;
+    }
+
+    private static Object result(Object value) {
+        if (value instanceof Number && !(value instanceof Double))
+            return ((Number) value).doubleValue();
+        if (value instanceof Character)
+            return value.toString();
+        if (value instanceof double[]) {
+            double[] numbers = (double[]) value;
+            return new WoxVector(Arrays.copyOf(numbers, numbers.length), numbers.length);
+        }
+        return value;
+    }
+}
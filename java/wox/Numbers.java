@@ -0,0 +1,163 @@
+package wox;
+
+/**
+ * Reading and writing number literals without going through intermediate
+ * strings.
+ *
+ * Both directions rest on the same fact: a decimal with at most 15
+ * significant digits times a power of ten up to 10^22 is the exact quotient
+ * (or product) of two doubles, so a single IEEE division or multiplication
+ * rounds it correctly. Parsing uses that directly for literals of that size.
+ * Printing rounds a value to 15 significant digits and keeps the result only
+ * if it converts back to the very same double, in which case its digits with
+ * trailing zeros dropped are the shortest that do. The rare values needing 16
+ * or 17 digits, and those outside of the exact powers of ten, are left to
+ * `Double.parseDouble` and `Double.toString`.
+ */
+class Numbers {
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+    };
+    private static final long MAX_EXACT = 1L << 53;
+    private static final int DIGITS = 15;
+
+    private Numbers() {
+    }
+
+    // parses `digits ('.' digits)?` between `from` and `to`
+    static double parse(CharSequence text, int from, int to) {
+        long mantissa = 0;
+        int digits = 0;
+        int fraction = 0;
+        boolean point = false;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c == '.') {
+                point = true;
+                continue;
+            }
+            if (digits == 0 && c == '0') {
+                // leading zeros are not significant
+                if (point)
+                    fraction++;
+                continue;
+            }
+            if (++digits > 18)
+                return Double.parseDouble(text.subSequence(from, to).toString());
+            mantissa = mantissa * 10 + (c - '0');
+            if (point)
+                fraction++;
+        }
+
+        if (fraction == 0)
+            return mantissa;
+        if (mantissa <= MAX_EXACT && fraction < POW10.length)
+            return mantissa / POW10[fraction];
+        return Double.parseDouble(text.subSequence(from, to).toString());
+    }
+
+    // appends the shortest digits that read back as `value`, laid out like
+    // `Double.toString` but without a trailing `.0`
+    static void format(double value, StringBuilder out) {
+        if (value != value) {
+            out.append("NaN");
+            return;
+        }
+        if (value < 0 || (value == 0 && 1 / value < 0)) {
+            out.append('-');
+            value = -value;
+        }
+        if (value == Double.POSITIVE_INFINITY) {
+            out.append("Infinity");
+            return;
+        }
+        if (value < 1e7 && value == (long) value) {
+            out.append((long) value);
+            return;
+        }
+
+        // the decimal exponent, give or take one
+        int exponent = (int) Math.floor(Math.log10(value));
+        int scale = DIGITS - 1 - exponent;
+        if (Math.abs(scale) < POW10.length) {
+            double scaled = scale >= 0 ? value * POW10[scale] : value / POW10[-scale];
+            long rounded = Math.round(scaled);
+            for (long mantissa = rounded - 1; mantissa <= rounded + 1; mantissa++) {
+                if (mantissa <= 0 || mantissa > MAX_EXACT)
+                    continue;
+                double back = scale >= 0 ? mantissa / POW10[scale] : mantissa * POW10[-scale];
+                if (back == value) {
+                    layout(mantissa, scale, out);
+                    return;
+                }
+            }
+        }
+
+        String text = Double.toString(value);
+        if (text.endsWith(".0")) {
+            out.append(text, 0, text.length() - 2);
+        } else {
+            out.append(text);
+        }
+    }
+
+    // writes `mantissa * 10^-scale`
+    private static void layout(long mantissa, int scale, StringBuilder out) {
+        while (mantissa % 10 == 0) {
+            mantissa /= 10;
+            scale--;
+        }
+        int digits = 1;
+        long unit = 1;
+        while (unit <= mantissa / 10) {
+            unit *= 10;
+            digits++;
+        }
+        int exponent = digits - 1 - scale;
+
+        if (exponent >= -3 && exponent < 7) {
+            if (exponent < 0) {
+                out.append("0.");
+                for (int i = -1; i > exponent; i--) {
+                    out.append('0');
+                }
+                appendDigits(mantissa, unit, digits, out);
+            } else {
+                // the integer part, padded with zeros when the mantissa is
+                // shorter than it
+                for (int i = 0; i <= exponent; i++) {
+                    if (i < digits) {
+                        out.append((char) ('0' + mantissa / unit % 10));
+                        unit /= 10;
+                    } else {
+                        out.append('0');
+                    }
+                }
+                if (digits > exponent + 1) {
+                    out.append('.');
+                    appendDigits(mantissa, unit, digits - exponent - 1, out);
+                }
+            }
+        } else {
+            out.append((char) ('0' + mantissa / unit));
+            unit /= 10;
+            out.append('.');
+            if (digits == 1) {
+                out.append('0');
+            } else {
+                appendDigits(mantissa, unit, digits - 1, out);
+            }
+            out.append('E').append(exponent);
+        }
+    }
+
+    // appends `count` digits of `mantissa`, starting with the one worth
+    // `unit`
+    private static void appendDigits(long mantissa, long unit, int count, StringBuilder out) {
+        for (int i = 0; i < count; i++) {
+            out.append((char) ('0' + mantissa / unit % 10));
+            unit /= 10;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package wox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites a parsed program before it is handed to the interpreter, folding
+ * constant expressions and propagating `let`-bound constants into their
+ * bodies.
+ *
+ * Folding mirrors `Interpreter` exactly: arithmetic is done on unboxed
+ * doubles, equality goes through `Interpreter.isEqual` (so NaN stays unequal
+ * to itself) and no algebraic identities such as `x * 0 => 0` are applied,
+ * since they do not hold under IEEE 754. Operations that would fail at runtime
+ * are left untouched so that the error is still reported where it happens.
+ */
+class Optimizer extends Rewriter {
+    // constants visible in the current `let` body, keyed by identifier. a
+    // `null` value marks a name shadowed by a non-constant `let`
+    private final Map<String, Expr.Literal> constants = new HashMap<>();
+
+    List<Stmt> optimize(List<Stmt> stmts) {
+        return rewriteStmts(stmts);
+    }
+
+    private static boolean isConstant(Expr expr) {
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object valueOf(Expr expr) {
+        return ((Expr.Literal) expr).value;
+    }
+
+    private static boolean areNumbers(Object left, Object right) {
+        return left instanceof Double && right instanceof Double;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+
+        if (isConstant(left) && isConstant(right)) {
+            Expr folded = fold(expr.operator, valueOf(left), valueOf(right));
+            if (folded != null)
+                return folded;
+        }
+
+        if (left == expr.left && right == expr.right)
+            return expr;
+        return new Expr.Binary(left, expr.operator, expr.at, right);
+    }
+
+    // returns `null` whenever the operation is not foldable, e.g., because it
+    // would throw at runtime
+    private Expr fold(TokenType operator, Object left, Object right) {
+        switch (operator) {
+            case BANG_EQUAL:
+                return new Expr.Literal(!Interpreter.isEqual(left, right));
+            case EQUAL_EQUAL:
+                return new Expr.Literal(Interpreter.isEqual(left, right));
+            case PLUS_PLUS:
+                if (left instanceof String && right instanceof String)
+                    return new Expr.Literal((String) left + (String) right);
+                return null;
+            default:
+                break;
+        }
+
+        if (!areNumbers(left, right))
+            return null;
+
+        double a = (double) left;
+        double b = (double) right;
+        switch (operator) {
+            case GREATER:
+                return new Expr.Literal(a > b);
+            case GREATER_EQUAL:
+                return new Expr.Literal(a >= b);
+            case LESS:
+                return new Expr.Literal(a < b);
+            case LESS_EQUAL:
+                return new Expr.Literal(a <= b);
+            case MINUS:
+                return new Expr.Literal(a - b);
+            case SLASH:
+                return new Expr.Literal(a / b);
+            case STAR:
+                return new Expr.Literal(a * b);
+            case PLUS:
+                return new Expr.Literal(a + b);
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public Expr visitDoExpr(Expr.Do expr) {
+        List<Expr> body = rewriteExprs(expr.body);
+
+        // literals before the last expression can never be observed
+        List<Expr> kept = new ArrayList<>();
+        for (int i = 0; i < body.size(); i++) {
+            Expr ex = body.get(i);
+            if (i < body.size() - 1 && isConstant(ex))
+                continue;
+            kept.add(ex);
+        }
+        if (kept.size() != body.size())
+            body = kept;
+
+        // expressions cannot introduce bindings into the scope of a `do`, so
+        // a single expression does not need one
+        if (body.size() == 1)
+            return body.get(0);
+        if (body == expr.body)
+            return expr;
+        return new Expr.Do(body);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        // groupings only exist to record precedence in the source
+        return rewrite(expr.expression);
+    }
+
+    @Override
+    public Expr visitIfExpr(Expr.If expr) {
+        Expr condition = rewrite(expr.condition);
+        if (isConstant(condition)) {
+            if (Interpreter.isTruthy(valueOf(condition)))
+                return rewrite(expr.when_true);
+            return rewrite(expr.when_false);
+        }
+
+        Expr whenTrue = rewrite(expr.when_true);
+        Expr whenFalse = rewrite(expr.when_false);
+        if (condition == expr.condition && whenTrue == expr.when_true && whenFalse == expr.when_false)
+            return expr;
+        return new Expr.If(condition, whenTrue, whenFalse);
+    }
+
+    @Override
+    public Expr visitLetExpr(Expr.Let expr) {
+        // the definition is evaluated before the variable comes into scope
+        Expr definition = rewrite(expr.definition);
+        String name = expr.variable;
+
+        boolean propagate = isConstant(definition) && !Assignments.assigns(expr.body, name);
+        boolean bound = constants.containsKey(name);
+        Expr.Literal outer = constants.put(name, propagate ? (Expr.Literal) definition : null);
+
+        Expr body;
+        try {
+            body = rewrite(expr.body);
+        } finally {
+            if (bound) {
+                constants.put(name, outer);
+            } else {
+                constants.remove(name);
+            }
+        }
+
+        // every reference to a propagated constant has been replaced, so the
+        // binding itself is dead
+        if (propagate)
+            return body;
+        if (definition == expr.definition && body == expr.body)
+            return expr;
+        return new Expr.Let(expr.variable, expr.at, definition, body);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.right);
+
+        if (isConstant(right)) {
+            Object value = valueOf(right);
+            switch (expr.operator) {
+                case MINUS:
+                    if (value instanceof Double)
+                        return new Expr.Literal(-(double) value);
+                    break;
+                case BANG:
+                    if (value instanceof Boolean)
+                        return new Expr.Literal(!Interpreter.isTruthy(value));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (right == expr.right)
+            return expr;
+        return new Expr.Unary(expr.operator, expr.at, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        Expr.Literal constant = constants.get(expr.name);
+        if (constant != null)
+            return constant;
+        return expr;
+    }
+
+    /**
+     * Answers whether an expression may assign to a given identifier. Since
+     * expressions cannot declare functions, an assignment can only be hidden
+     * in the expression's own subtree.
+     */
+    private static class Assignments extends Rewriter {
+        private final String name;
+        private boolean found = false;
+
+        private Assignments(String name) {
+            this.name = name;
+        }
+
+        static boolean assigns(Expr expr, String name) {
+            Assignments assignments = new Assignments(name);
+            assignments.rewrite(expr);
+            return assignments.found;
+        }
+
+        @Override
+        public Expr visitAssignExpr(Expr.Assign expr) {
+            found |= expr.name.equals(name);
+            return super.visitAssignExpr(expr);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package wox;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Where `print` writes to. Values are stringified straight into one large,
+ * unsynchronized buffer, which is handed to the underlying writer only when it
+ * fills up or when someone calls `flush`, e.g., before the program exits,
+ * before the prompt is shown, and before an error is reported.
+ *
+ * Once a program spawns tasks, each line is written while holding the lock
+ * of the output, and so is every flush.
+ */
+class Output {
+    static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private final Writer sink;
+    private final int capacity;
+    private final StringBuilder buffer;
+    // whether threads other than the program's own may print
+    volatile boolean shared = false;
+
+    Output(Writer sink, int capacity) {
+        this.sink = sink;
+        this.capacity = capacity;
+        this.buffer = new StringBuilder(capacity + capacity / 4);
+    }
+
+    // standard output, bypassing `System.out` and its per-call locking
+    static Output stdout() {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), Charset.defaultCharset());
+        return new Output(writer, DEFAULT_CAPACITY);
+    }
+
+    // the line being written, to be ended with `endLine`
+    StringBuilder buffer() {
+        return buffer;
+    }
+
+    void endLine() {
+        buffer.append('\n');
+        if (buffer.length() >= capacity)
+            flush();
+    }
+
+    void flush() {
+        if (shared) {
+            synchronized (this) {
+                write();
+            }
+        } else {
+            write();
+        }
+    }
+
+    private void write() {
+        try {
+            if (buffer.length() > 0) {
+                sink.append(buffer);
+                buffer.setLength(0);
+            }
+            sink.flush();
+        } catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package wox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builtins applying a function to every element of a vector on the common
+ * `ForkJoinPool`: `par_map(v, f)`, `par_filter(v, f)` and
+ * `par_reduce(v, init, f)`. Results come in the order of the elements, as if
+ * computed one by one. `par_reduce` folds from the left, `f(f(init, v[0]),
+ * v[1])` and so on, which is what it does when it stays on one thread; in
+ * parallel, pieces are folded on their own and then together, which comes
+ * out the same only if `f` is associative.
+ *
+ * Only functions that are isolated go parallel, i.e., ones that neither
+ * print nor assign anything but their own variables, and only call pure
+ * natives and other isolated functions. Anything else, such as a function
+ * that sums into a global, is applied to the elements one after the other,
+ * which is always right if not always fast.
+ *
+ * How much work to hand out at a time is learned from the first few
+ * elements, which are evaluated right away: if the rest would take less
+ * than `PARALLEL_NANOS` it is done on the spot as well, and otherwise it is
+ * split into pieces of about `PIECE_NANOS` each.
+ */
+class Parallel {
+    // elements evaluated to estimate the cost of the rest
+    static final int PROBE = 8;
+    static final long PARALLEL_NANOS = 200_000;
+    static final long PIECE_NANOS = 50_000;
+
+    private Parallel() {
+    }
+
+    static void define(Environment builtins) {
+        builtins.define("par_map", new Builtin("par_map", 2) {
+            @Override
+            Object apply(Interpreter interpreter, List<Object> elements, Object init, WoxCallable function) {
+                Object[] results = new Object[elements.size()];
+                run(interpreter, function, elements.size(), (worker, i) -> {
+                    results[i] = function.call(worker, List.of(elements.get(i)));
+                });
+                WoxVector vector = new WoxVector(results.length);
+                for (Object result : results) {
+                    vector.add(result);
+                }
+                return vector;
+            }
+        });
+        builtins.define("par_filter", new Builtin("par_filter", 2) {
+            @Override
+            Object apply(Interpreter interpreter, List<Object> elements, Object init, WoxCallable function) {
+                boolean[] kept = new boolean[elements.size()];
+                run(interpreter, function, elements.size(), (worker, i) -> {
+                    kept[i] = Interpreter.isTruthy(function.call(worker, List.of(elements.get(i))));
+                });
+                WoxVector vector = new WoxVector(kept.length);
+                for (int i = 0; i < kept.length; i++) {
+                    if (kept[i])
+                        vector.add(elements.get(i));
+                }
+                return vector;
+            }
+        });
+        builtins.define("par_reduce", new Builtin("par_reduce", 3) {
+            @Override
+            Object apply(Interpreter interpreter, List<Object> elements, Object init, WoxCallable function) {
+                // the elements done on the spot, which come first and in
+                // order, are folded into `folded`; every piece done on the
+                // pool folds its elements on its own, and those pieces are
+                // folded in order at the end
+                int n = elements.size();
+                Object[] folded = { init };
+                Object[] partial = new Object[n];
+                boolean[] starts = new boolean[n];
+                run(interpreter, function, n, new Step() {
+                    @Override
+                    public void piece(Interpreter worker, int from, int to) {
+                        if (worker == interpreter) {
+                            for (int i = from; i < to; i++) {
+                                folded[0] = function.call(worker, List.of(folded[0], elements.get(i)));
+                            }
+                            return;
+                        }
+                        if (from == to)
+                            return;
+                        Object value = elements.get(from);
+                        for (int i = from + 1; i < to; i++) {
+                            value = function.call(worker, List.of(value, elements.get(i)));
+                        }
+                        partial[from] = value;
+                        starts[from] = true;
+                    }
+
+                    @Override
+                    public void at(Interpreter worker, int i) {
+                        piece(worker, i, i + 1);
+                    }
+                });
+                Object value = folded[0];
+                for (int i = 0; i < n; i++) {
+                    if (starts[i])
+                        value = function.call(interpreter, List.of(value, partial[i]));
+                }
+                return value;
+            }
+        });
+    }
+
+    ///////////// SCHEDULING
+
+    private interface Step {
+        void at(Interpreter worker, int i);
+
+        // the elements from `from` up to `to`, in one go
+        default void piece(Interpreter worker, int from, int to) {
+            for (int i = from; i < to; i++) {
+                at(worker, i);
+            }
+        }
+    }
+
+    private abstract static class Builtin implements WoxCallable {
+        final String name;
+        private final int arity;
+
+        Builtin(String name, int arity) {
+            this.name = name;
+            this.arity = arity;
+        }
+
+        abstract Object apply(Interpreter interpreter, List<Object> elements, Object init, WoxCallable function);
+
+        @Override
+        public int arity() {
+            return arity;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            if (!(arguments.get(0) instanceof List))
+                throw new Misuse("Argument 1 of `" + name + "` must be a vector!");
+            Object function = arguments.get(arity - 1);
+            int takes = arity == 3 ? 2 : 1;
+            if (!(function instanceof WoxCallable) || ((WoxCallable) function).arity() != takes)
+                throw new Misuse("Argument " + arity + " of `" + name + "` must be a function of "
+                        + takes + (takes == 1 ? " argument!" : " arguments!"));
+            Object init = arity == 3 ? arguments.get(1) : null;
+            return apply(interpreter, (List<Object>) arguments.get(0), init, (WoxCallable) function);
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn " + name + ">";
+        }
+    }
+
+    // `step` over the `n` elements, in pieces on the pool if worth it
+    private static void run(Interpreter interpreter, WoxCallable function, int n, Step step) {
+        int probe = Math.min(n, PROBE);
+        long start = System.nanoTime();
+        step.piece(interpreter, 0, probe);
+        long each = Math.max(1, (System.nanoTime() - start) / Math.max(probe, 1));
+        if (probe == n || each * (n - probe) < PARALLEL_NANOS || !isolated(function, new HashSet<>())) {
+            step.piece(interpreter, probe, n);
+            return;
+        }
+
+        interpreter.share(function);
+        int grain = (int) Math.max(1, Math.min(n, PIECE_NANOS / each));
+        Pieces pieces = new Pieces(interpreter, step, probe, n, grain);
+        ForkJoinPool.commonPool().invoke(pieces);
+        if (pieces.failure != null)
+            throw pieces.failure;
+    }
+
+    @SuppressWarnings("serial")
+    private static class Pieces extends RecursiveAction {
+        private final Interpreter spawner;
+        private final Step step;
+        private final int from;
+        private final int to;
+        private final int grain;
+        // the first error raised, by element
+        RuntimeException failure;
+        int failedAt = Integer.MAX_VALUE;
+
+        Pieces(Interpreter spawner, Step step, int from, int to, int grain) {
+            this.spawner = spawner;
+            this.step = step;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                try {
+                    step.piece(new Interpreter(spawner), from, to);
+                } catch (RuntimeException error) {
+                    failure = error;
+                    failedAt = from;
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            Pieces left = new Pieces(spawner, step, from, middle, grain);
+            Pieces right = new Pieces(spawner, step, middle, to, grain);
+            invokeAll(left, right);
+            Pieces failed = left.failure != null ? left : right;
+            failure = failed.failure;
+            failedAt = failed.failedAt;
+        }
+    }
+
+    ///////////// ISOLATION
+
+    // whether calling `function` cannot change or print anything that its
+    // callers could see, `checking` holding the functions already assumed to
+    // be isolated further up
+    static boolean isolated(WoxCallable function, Set<Stmt.Function> checking) {
+        if (function instanceof NativeFunction)
+            return ((NativeFunction) function).pure;
+        if (!(function instanceof WoxFunction))
+            return false;
+        WoxFunction wox = (WoxFunction) function;
+        if (!checking.add(wox.declaration))
+            return true;
+
+        Locals locals = new Locals();
+        for (String param : wox.declaration.params) {
+            locals.declare(param);
+        }
+        locals.rewriteStmts(wox.declaration.body);
+        if (locals.escapes)
+            return false;
+        for (String callee : locals.callees) {
+            if (locals.declared.contains(callee))
+                return false;
+            Object value = wox.closure().lookup(callee);
+            if (!(value instanceof WoxCallable) || !isolated((WoxCallable) value, checking))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * The names a function body declares and calls, and whether it does
+     * anything its callers could see, not counting the bodies of functions
+     * nested in it, which only matter when they are called and are not
+     * looked into.
+     *
+     * Scopes are followed as the interpreter has them, so that assigning a
+     * name only counts as local where one of the body's own declarations of
+     * it is in scope, and not just because it is declared somewhere.
+     */
+    static class Locals extends Rewriter {
+        // anywhere in the body
+        final Set<String> declared = new HashSet<>();
+        final Set<String> callees = new HashSet<>();
+        // prints, sets a field, assigns a name that is not its own or calls
+        // something other than a name
+        boolean escapes = false;
+        // innermost first
+        private final Deque<Set<String>> scopes = new ArrayDeque<>();
+
+        Locals() {
+            scopes.push(new HashSet<>());
+        }
+
+        void declare(String name) {
+            declared.add(name);
+            scopes.peek().add(name);
+        }
+
+        private boolean inScope(String name) {
+            for (Set<String> scope : scopes) {
+                if (scope.contains(name))
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public Stmt visitBlockStmt(Stmt.Block stmt) {
+            scopes.push(new HashSet<>());
+            try {
+                return super.visitBlockStmt(stmt);
+            } finally {
+                scopes.pop();
+            }
+        }
+
+        @Override
+        public Stmt visitLoopStmt(Stmt.Loop stmt) {
+            scopes.push(new HashSet<>());
+            try {
+                return super.visitLoopStmt(stmt);
+            } finally {
+                scopes.pop();
+            }
+        }
+
+        @Override
+        public Stmt visitFunctionStmt(Stmt.Function stmt) {
+            declare(stmt.name);
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitClassStmt(Stmt.Class stmt) {
+            declare(stmt.name);
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitVarStmt(Stmt.Var stmt) {
+            // the initializer still sees the name as it was
+            Stmt visited = super.visitVarStmt(stmt);
+            declare(stmt.name);
+            return visited;
+        }
+
+        @Override
+        public Stmt visitPrintStmt(Stmt.Print stmt) {
+            escapes = true;
+            return stmt;
+        }
+
+        @Override
+        public Expr visitDoExpr(Expr.Do expr) {
+            scopes.push(new HashSet<>());
+            try {
+                return super.visitDoExpr(expr);
+            } finally {
+                scopes.pop();
+            }
+        }
+
+        @Override
+        public Expr visitLetExpr(Expr.Let expr) {
+            rewrite(expr.definition);
+            scopes.push(new HashSet<>());
+            try {
+                declare(expr.variable);
+                rewrite(expr.body);
+            } finally {
+                scopes.pop();
+            }
+            return expr;
+        }
+
+        @Override
+        public Expr visitMemoExpr(Expr.Memo expr) {
+            declare(expr.slot);
+            return super.visitMemoExpr(expr);
+        }
+
+        @Override
+        public Expr visitAssignExpr(Expr.Assign expr) {
+            if (!inScope(expr.name))
+                escapes = true;
+            return super.visitAssignExpr(expr);
+        }
+
+        @Override
+        public Expr visitSetExpr(Expr.Set expr) {
+            escapes = true;
+            return expr;
+        }
+
+        @Override
+        public Expr visitCallExpr(Expr.Call expr) {
+            if (expr.callee instanceof Expr.Variable) {
+                callees.add(((Expr.Variable) expr.callee).name);
+            } else {
+                escapes = true;
+            }
+            return super.visitCallExpr(expr);
+        }
+    }
+}
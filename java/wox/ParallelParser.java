@@ -0,0 +1,184 @@
+package wox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Lexes and parses a large source in chunks, concurrently. The source is cut
+ * where a line starts with a declaration keyword (see `TokenType.beginsDecl`)
+ * outside of any string, comment or braces, which is found by a quick scan
+ * that only tracks those three. Each chunk gets its own `Lexer` starting at
+ * the chunk's offset and line, so tokens carry the same positions as they
+ * would in a single pass, and the statement lists are concatenated in order.
+ *
+ * A cut is only a guess at a declaration boundary, e.g., a `while` may well
+ * have its body on the next line. Syntax errors are therefore held back, and
+ * if any chunk fails to parse, the whole token stream is parsed again in one
+ * piece to report the errors a single pass would. Lexing errors do not depend
+ * on where the source is cut, and are reported in source order.
+ */
+class ParallelParser {
+    // sources are not cut into chunks smaller than this, in characters
+    static final int MIN_CHUNK = 1 << 16;
+    private static final Map<String, TokenType> keywords = TokenType.keywords();
+
+    private final String source;
+    private final boolean lazy;
+    private final Reporter reporter;
+    private final ForkJoinPool pool;
+
+    ParallelParser(String source, boolean lazy) {
+        this(source, lazy, Wox.reporter, ForkJoinPool.commonPool());
+    }
+
+    ParallelParser(String source, boolean lazy, Reporter reporter, ForkJoinPool pool) {
+        this.source = source;
+        this.lazy = lazy;
+        this.reporter = reporter;
+        this.pool = pool;
+    }
+
+    private static class Chunk implements Callable<Chunk> {
+        final String source;
+        final Source file;
+        final int from;
+        final int to;
+        final int line;
+        final boolean lazy;
+        final Reporter reporter;
+        final Reporter.Buffer lexErrors = new Reporter.Buffer();
+        List<Token> tokens;
+        List<Stmt> stmts;
+        // whether the lexer stopped exactly at the end of the chunk
+        boolean aligned;
+        boolean failed;
+
+        Chunk(String source, Source file, int from, int to, int line, boolean lazy, Reporter reporter) {
+            this.source = source;
+            this.file = file;
+            this.from = from;
+            this.to = to;
+            this.line = line;
+            this.lazy = lazy;
+            this.reporter = reporter;
+        }
+
+        @Override
+        public Chunk call() {
+            Lexer lexer = new Lexer(source, from, line, lexErrors);
+            tokens = lexer.lexUntil(at -> at >= to);
+            aligned = lexer.position() == to;
+            tokens.add(lexer.eof());
+            if (aligned) {
+                // errors in bodies parsed later are not the chunk's to buffer
+                Parser parser = new Parser(tokens, file, lazy, new Reporter.Buffer(), reporter,
+                        Interner.ENABLED ? new Interner() : null);
+                stmts = parser.parse();
+                failed = parser.failed;
+            }
+            return this;
+        }
+    }
+
+    List<Stmt> parse() {
+        return parse(new Source(source));
+    }
+
+    // with positions from `file`, which must cover the whole source
+    List<Stmt> parse(Source file) {
+        int size = Math.max(MIN_CHUNK, source.length() / (4 * pool.getParallelism()));
+        List<Chunk> chunks = split(file, size);
+        if (chunks.size() < 2)
+            return new Parser(new Lexer(source, 0, 1, reporter).lex(), file, lazy, reporter).parse();
+
+        for (Future<Chunk> done : pool.invokeAll(chunks)) {
+            try {
+                done.get();
+            } catch (InterruptedException | ExecutionException error) {
+                throw new IllegalStateException("parsing a chunk failed", error);
+            }
+        }
+
+        boolean aligned = true;
+        boolean failed = false;
+        for (Chunk chunk : chunks) {
+            aligned &= chunk.aligned;
+            failed |= chunk.failed;
+        }
+        if (!aligned)
+            return new Parser(new Lexer(source, 0, 1, reporter).lex(), file, lazy, reporter).parse();
+
+        for (Chunk chunk : chunks) {
+            chunk.lexErrors.replay(reporter);
+        }
+
+        if (failed) {
+            List<Token> tokens = new ArrayList<>();
+            for (Chunk chunk : chunks) {
+                // only the last chunk's `EOF` is kept
+                if (!tokens.isEmpty())
+                    tokens.remove(tokens.size() - 1);
+                tokens.addAll(chunk.tokens);
+            }
+            return new Parser(tokens, file, lazy, reporter).parse();
+        }
+
+        List<Stmt> stmts = new ArrayList<>();
+        for (Chunk chunk : chunks) {
+            stmts.addAll(chunk.stmts);
+        }
+        return stmts;
+    }
+
+    // cuts the source into chunks of at least `size` characters, at lines
+    // starting with a declaration keyword outside of strings, comments and
+    // braces
+    private List<Chunk> split(Source file, int size) {
+        List<Chunk> chunks = new ArrayList<>();
+        int length = source.length();
+        int from = 0;
+        int fromLine = 1;
+        int line = 1;
+        int depth = 0;
+        for (int i = 0; i < length; i++) {
+            char c = source.charAt(i);
+            if (c == '"') {
+                i++;
+                while (i < length && source.charAt(i) != '"') {
+                    if (source.charAt(i) == '\n')
+                        line++;
+                    i++;
+                }
+            } else if (c == '/' && i + 1 < length && source.charAt(i + 1) == '/') {
+                while (i + 1 < length && source.charAt(i + 1) != '\n')
+                    i++;
+            } else if (c == '{') {
+                depth++;
+            } else if (c == '}') {
+                depth--;
+            } else if (c == '\n') {
+                line++;
+                if (depth == 0 && i + 1 - from >= size && beginsDecl(i + 1)) {
+                    chunks.add(new Chunk(source, file, from, i + 1, fromLine, lazy, reporter));
+                    from = i + 1;
+                    fromLine = line;
+                }
+            }
+        }
+        chunks.add(new Chunk(source, file, from, length, fromLine, lazy, reporter));
+        return chunks;
+    }
+
+    private boolean beginsDecl(int at) {
+        int end = at;
+        while (end < source.length() && (Character.isLetterOrDigit(source.charAt(end)) || source.charAt(end) == '_'))
+            end++;
+        TokenType type = keywords.get(source.substring(at, end));
+        return type != null && type.beginsDecl();
+    }
+}
@@ -11,14 +11,49 @@ public class Parser {
     }
 
     private final List<Token> tokens;
+    // when set, the bodies of top-level functions are only checked for
+    // balanced braces and parsed on first use
+    private final boolean lazy;
+    private final Reporter reporter;
+    // where bodies parsed lazily report their syntax errors, which may be
+    // long after this parser's own errors have been dealt with
+    private final Reporter bodies;
+    // hands out the positions nodes are given in place of their tokens
+    private Source source;
+    // shares structurally identical expressions when set, see `Interner`
+    private final Interner interner;
     private int current = 0;
+    private int depth = 0;
+    boolean failed = false;
 
     Parser(String source) {
-        this.tokens = new Lexer(source).lex();
+        this(new Lexer(source).lex(), new Source(source));
     }
 
-    Parser(List<Token> tokens) {
+    Parser(List<Token> tokens, Source source) {
+        this(tokens, source, false);
+    }
+
+    Parser(List<Token> tokens, Source source, boolean lazy) {
+        this(tokens, source, lazy, Wox.reporter);
+    }
+
+    Parser(List<Token> tokens, Source source, boolean lazy, Reporter reporter) {
+        this(tokens, source, lazy, reporter, Interner.ENABLED ? new Interner() : null);
+    }
+
+    Parser(List<Token> tokens, Source source, boolean lazy, Reporter reporter, Interner interner) {
+        this(tokens, source, lazy, reporter, reporter, interner);
+    }
+
+    Parser(List<Token> tokens, Source source, boolean lazy, Reporter reporter, Reporter bodies,
+            Interner interner) {
         this.tokens = tokens;
+        this.source = source;
+        this.lazy = lazy;
+        this.reporter = reporter;
+        this.bodies = bodies;
+        this.interner = interner;
     }
 
     private boolean isDone() {
@@ -39,6 +74,19 @@ public class Parser {
         return previous();
     }
 
+    private <T extends Expr> T share(T expr) {
+        return interner == null ? expr : interner.intern(expr);
+    }
+
+    private int at(Token token) {
+        return source.at(token);
+    }
+
+    // names are interned, so that every occurrence of one shares its string
+    private static String name(Token token) {
+        return token.text.intern();
+    }
+
     private boolean match(TokenType... types) {
         for (TokenType type : types) {
             if (check(type)) {
@@ -103,6 +151,19 @@ public class Parser {
         return statements;
     }
 
+    // parses the single top-level declaration starting at token `start`, with
+    // positions in `source`
+    Stmt declaration(int start, Source source) {
+        this.source = source;
+        current = start;
+        return declaration();
+    }
+
+    // index of the next token to parse
+    int position() {
+        return current;
+    }
+
     private Stmt declaration() {
         try {
             if (match(CLASS))
@@ -124,7 +185,7 @@ public class Parser {
         Expr.Variable parent = null;
         if (match(LESS)) {
             eat(IDENT, "Expected superclass name after subclass operator `<`.");
-            parent = new Expr.Variable(previous());
+            parent = share(new Expr.Variable(name(previous()), at(previous())));
         }
 
         eat(CURLY_L, "Expected `{` after class header and before class body.");
@@ -135,7 +196,7 @@ public class Parser {
 
         eat(CURLY_R, "Unbalanced braces! Expected `}` after class body");
 
-        return new Stmt.Class(name, parent, methods);
+        return new Stmt.Class(name(name), at(name), parent, methods);
     }
 
     private Stmt varDecl() {
@@ -145,27 +206,56 @@ public class Parser {
         if (match(EQUAL))
             initializer = expression();
         eat(SEMICOLON);
-        return new Stmt.Var(name, initializer);
+        return new Stmt.Var(name(name), at(name), initializer);
     }
 
     private Stmt.Function function(String kind) {
         Token name = eat(IDENT, "Expected " + kind + " name.");
         eat(PAREN_L, "Expected `(` after " + kind + " name.");
-        List<Token> params = new ArrayList<>();
+        List<String> params = new ArrayList<>();
         if (!check(PAREN_R)) {
             do {
                 if (params.size() >= 255) {
                     error(peek(), "maximum function parameter size exceeded! Cannot have more than 255 parameters");
                 }
 
-                params.add(eat(IDENT, "Expected parameter name within function definition."));
+                params.add(name(eat(IDENT, "Expected parameter name within function definition.")));
             } while (match(COMMA));
         }
         eat(PAREN_R, "Unbalanced parentheses! Expected `)` after parameters in function definition.");
 
         eat(CURLY_L, "Expected '{' before " + kind + " body.");
+        if (lazy && depth == 0) {
+            return new Stmt.Function(name(name), at(name), params, skipBody(name, kind));
+        }
         List<Stmt> body = block();
-        return new Stmt.Function(name, params, body);
+        return new Stmt.Function(name(name), at(name), params, body);
+    }
+
+    // pre-parses a body by matching braces, leaving the actual parse to
+    // `LazyBody`
+    private List<Stmt> skipBody(Token name, String kind) {
+        int start = current;
+        int open = 1;
+        while (!isDone()) {
+            TokenType type = advance().type;
+            if (type == CURLY_L) {
+                open++;
+            } else if (type == CURLY_R && --open == 0) {
+                return new LazyBody(name(name), at(name), tokens, source, bodies, interner, start, current - 1);
+            }
+        }
+        throw error(peek(), "Unbalanced braces! Expected `}` after " + kind + " body.");
+    }
+
+    // parses the body of a function whose opening brace precedes `start`
+    List<Stmt> body(int start) {
+        current = start;
+        try {
+            return block();
+        } catch (ParseError error) {
+            return new ArrayList<>();
+        }
     }
 
     private Stmt statement() {
@@ -185,7 +275,8 @@ public class Parser {
     }
 
     private Stmt loopStmt() {
-        return null;
+        eat(CURLY_L, "Expected `{` after `loop` keyword.");
+        return new Stmt.Loop(block());
     }
 
     private Stmt forStmt() {
@@ -193,22 +284,37 @@ public class Parser {
     }
 
     private Stmt printStmt() {
-        return null;
+        Expr value = expression();
+        ignore(SEMICOLON);
+        return new Stmt.Print(value);
     }
 
     private Stmt retStmt() {
-        return null;
+        Token keyword = previous();
+        Expr value = null;
+        if (!check(SEMICOLON) && !check(CURLY_R)) {
+            value = expression();
+        }
+        ignore(SEMICOLON);
+        return new Stmt.Return(at(keyword), value);
     }
 
     private Stmt whileStmt() {
-        return null;
+        Expr condition = expression();
+        Stmt body = statement();
+        return new Stmt.While(condition, body);
     }
 
     private List<Stmt> block() {
         List<Stmt> statements = new ArrayList<>();
 
-        while (!check(CURLY_R) && !isDone()) {
-            statements.add(declaration());
+        depth++;
+        try {
+            while (!check(CURLY_R) && !isDone()) {
+                statements.add(declaration());
+            }
+        } finally {
+            depth--;
         }
 
         eat(CURLY_R, "Expect '}' after block.");
@@ -233,11 +339,11 @@ public class Parser {
             Expr value = assignment();
 
             if (expr instanceof Expr.Variable) {
-                Token name = ((Expr.Variable) expr).name;
-                return new Expr.Assign(name, value);
+                Expr.Variable variable = (Expr.Variable) expr;
+                return share(new Expr.Assign(variable.name, variable.at, value));
             } else if (expr instanceof Expr.Get) {
                 Expr.Get get = (Expr.Get) expr;
-                return new Expr.Set(get.object, get.name, value);
+                return share(new Expr.Set(get.object, get.name, get.at, value));
             }
 
             error(eq, "Invalid assignment target.");
@@ -252,7 +358,7 @@ public class Parser {
         while (match(OR)) {
             Token op = previous();
             Expr right = and();
-            expr = new Expr.Binary(expr, op, right);
+            expr = share(new Expr.Binary(expr, op.type, at(op), right));
         }
         return expr;
     }
@@ -263,7 +369,7 @@ public class Parser {
         while (match(AND)) {
             Token op = previous();
             Expr right = equality();
-            expr = new Expr.Binary(expr, op, right);
+            expr = share(new Expr.Binary(expr, op.type, at(op), right));
         }
         return expr;
     }
@@ -274,7 +380,7 @@ public class Parser {
         while (match(BANG_EQUAL, EQUAL_EQUAL)) {
             Token operator = previous();
             Expr right = comparison();
-            left = new Expr.Binary(left, operator, right);
+            left = share(new Expr.Binary(left, operator.type, at(operator), right));
         }
 
         return left;
@@ -286,7 +392,7 @@ public class Parser {
         while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
             Token operator = previous();
             Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
+            expr = share(new Expr.Binary(expr, operator.type, at(operator), right));
         }
 
         return expr;
@@ -295,10 +401,10 @@ public class Parser {
     private Expr term() {
         Expr expr = factor();
 
-        while (match(MINUS, PLUS)) {
+        while (match(MINUS, PLUS, PLUS_PLUS)) {
             Token operator = previous();
             Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
+            expr = share(new Expr.Binary(expr, operator.type, at(operator), right));
         }
 
         return expr;
@@ -310,7 +416,7 @@ public class Parser {
         while (match(STAR, SLASH)) {
             Token operator = previous();
             Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
+            expr = share(new Expr.Binary(expr, operator.type, at(operator), right));
         }
 
         return expr;
@@ -320,7 +426,7 @@ public class Parser {
         if (match(BANG, MINUS)) {
             Token operator = previous();
             Expr right = unary();
-            return new Expr.Unary(operator, right);
+            return share(new Expr.Unary(operator.type, at(operator), right));
         }
         return call();
     }
@@ -335,8 +441,8 @@ public class Parser {
                 arguments.add(expression());
             } while (match(COMMA));
         }
-        eat(PAREN_R, "expected `)` after function call arguments.");
-        return new Expr.Call(callee, arguments);
+        Token paren = eat(PAREN_R, "expected `)` after function call arguments.");
+        return share(new Expr.Call(callee, at(paren), arguments));
     }
 
     private Expr call() {
@@ -347,7 +453,7 @@ public class Parser {
                 expr = finishCall(expr);
             } else if (match(DOT)) {
                 Token name = eat(IDENT, "expected property name after `.`.");
-                expr = new Expr.Get(expr, name);
+                expr = share(new Expr.Get(expr, name(name), at(name)));
             } else {
                 break;
             }
@@ -358,14 +464,14 @@ public class Parser {
 
     private Expr primary() {
         if (match(FALSE))
-            return new Expr.Literal(false);
+            return share(new Expr.Literal(false));
         if (match(TRUE))
-            return new Expr.Literal(true);
+            return share(new Expr.Literal(true));
         if (match(NIL))
-            return new Expr.Literal(null);
+            return share(new Expr.Literal(null));
 
         if (match(NUMBER, STRING)) {
-            return new Expr.Literal(previous().literal);
+            return share(new Expr.Literal(previous().literal));
         }
 
         if (match(LET)) {
@@ -380,17 +486,17 @@ public class Parser {
             Token kw = previous();
             eat(DOT, "Expected `.` after `super` keyword.");
             Token method = eat(IDENT, "Expected identifier for superclass method name.");
-            return new Expr.Super(kw, method);
+            return share(new Expr.Super(at(kw), name(method)));
         }
 
         if (match(THIS))
-            return new Expr.This(previous());
+            return share(new Expr.This(at(previous())));
 
         if (match(IDENT))
-            return new Expr.Variable(previous());
+            return share(new Expr.Variable(name(previous()), at(previous())));
 
         if (check(BRACK_L)) {
-            return new Expr.Vector(delimited(BRACK_L, COMMA, BRACK_R, Parser::expression));
+            return share(new Expr.Vector(delimited(BRACK_L, COMMA, BRACK_R, Parser::expression)));
         }
 
         if (match(PAREN_L)) {
@@ -399,7 +505,7 @@ public class Parser {
                 return tupleTail(expr);
             } else {
                 eat(PAREN_R, "unmatched parentheses! Expected ')' after expression");
-                return new Expr.Grouping(expr);
+                return share(new Expr.Grouping(expr));
             }
         }
 
@@ -414,7 +520,7 @@ public class Parser {
                 (p) -> {
                     return p.expression();
                 });
-        return new Expr.Do(exprs);
+        return share(new Expr.Do(exprs));
     }
 
     private Expr tupleTail(Expr head) {
@@ -430,7 +536,7 @@ public class Parser {
         }
         eat(PAREN_R,
                 "unbalanced parentheses! Expected `)` after tuple but found `" + peek().text + "` instead.");
-        return new Expr.Tuple(parts);
+        return share(new Expr.Tuple(parts));
     }
 
     private Expr let() {
@@ -439,11 +545,12 @@ public class Parser {
         Expr definition = expression();
         eat(IN, "expected keyword `in` after let-expression definition and before scoped body!");
         Expr body = expression();
-        return new Expr.Let(varname, definition, body);
+        return share(new Expr.Let(name(varname), at(varname), definition, body));
     }
 
     private ParseError error(Token token, String message) {
-        Wox.error(token, message);
+        failed = true;
+        reporter.error(token, message);
         return new ParseError();
     }
 
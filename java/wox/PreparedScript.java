@@ -0,0 +1,114 @@
+package wox;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.Cleaner;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A program parsed and optimized once, to be run any number of times. Every
+ * run gets an interpreter and globals of its own, while the syntax tree is
+ * shared: it is parsed eagerly, so that nothing about it changes once it is
+ * compiled, and any number of runs may go on at the same time.
+ *
+ * The globals of a run are kept in the bindings passed to it. Whatever the
+ * caller puts there is visible to the program, and what the program defines
+ * at the top level is there afterwards. Bindings hold Wox values, i.e.,
+ * `Double`, `String`, `Boolean`, `null` or values the program itself made,
+ * and must not be shared by runs going on at the same time.
+ *
+ * A compiled script holds on to the positions of its source, see `Source`,
+ * until it is closed, or else until it is no longer reachable. Closing it
+ * waits for the runs going on to end; runs started after that still work, but
+ * their runtime errors can no longer tell their line and column.
+ */
+public class PreparedScript implements AutoCloseable {
+    // releases the sources of scripts that are dropped without being closed
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    // runs usually print little, if anything
+    private static final int OUTPUT_CAPACITY = 1 << 10;
+
+    private final List<Stmt> stmts;
+    // memo slots declared at the top level, which are no business of the
+    // caller's bindings
+    private final List<String> slots = new ArrayList<>();
+    private final Cleaner.Cleanable source;
+    // runs going on, and whether the source goes as soon as they are done
+    private int running = 0;
+    private boolean closed = false;
+
+    private PreparedScript(List<Stmt> stmts, Source source) {
+        this.stmts = stmts;
+        // must not refer to the script, or it would never become unreachable
+        this.source = CLEANER.register(this, source::release);
+        for (Stmt stmt : stmts) {
+            if (stmt instanceof Stmt.Var && Memoizer.isSlot(((Stmt.Var) stmt).name))
+                slots.add(((Stmt.Var) stmt).name);
+        }
+    }
+
+    // throws an `IllegalArgumentException` listing the syntax errors, if any
+    public static PreparedScript compile(String source) {
+        StringBuilder messages = new StringBuilder();
+        Reporter.Printer errors = new Reporter.Printer(messages);
+        Source file = new Source(source);
+        List<Stmt> stmts = new ParallelParser(source, false, errors, ForkJoinPool.commonPool()).parse(file);
+        if (errors.hadError) {
+            file.release();
+            throw new IllegalArgumentException(messages.toString().trim());
+        }
+        return new PreparedScript(Context.optimize(stmts), file);
+    }
+
+    public Object run() {
+        return run(new HashMap<>());
+    }
+
+    public Object run(Map<String, Object> bindings) {
+        return run(bindings, new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), Charset.defaultCharset()));
+    }
+
+    // the value of the last statement if it is an expression, `null`
+    // otherwise; runtime errors are thrown as `wox.Exception`s
+    public Object run(Map<String, Object> bindings, Writer out) {
+        return run(bindings, null, out);
+    }
+
+    // looking up names missing from `bindings` in `outer`, if given
+    Object run(Map<String, Object> bindings, Map<String, Object> outer, Writer out) {
+        Output output = new Output(out, OUTPUT_CAPACITY);
+        // the interpreter leaves runtime errors to us, so it needs no reporter
+        Interpreter interpreter = new Interpreter(output, null, bindings, outer);
+        synchronized (this) {
+            running++;
+        }
+        try {
+            return interpreter.run(stmts);
+        } finally {
+            output.flush();
+            for (String slot : slots) {
+                bindings.remove(slot);
+            }
+            synchronized (this) {
+                if (--running == 0 && closed)
+                    source.clean();
+            }
+        }
+    }
+
+    // gives back the positions of the source once the runs going on are done
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (running == 0)
+            source.clean();
+    }
+}
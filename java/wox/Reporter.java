@@ -0,0 +1,92 @@
+package wox;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Where the lexer and parser send syntax errors, and the interpreter the
+ * runtime error ending a program. A `Printer` writes them out right away,
+ * while a `Buffer` holds on to them until it is known whether, and in which
+ * order, they should be shown.
+ */
+interface Reporter {
+    void error(int line, int column, String message);
+
+    void error(Token token, String message);
+
+    void runtimeError(Exception error);
+
+    // one error per line, remembering which kinds were seen
+    class Printer implements Reporter {
+        private final Appendable out;
+        boolean hadError = false;
+        boolean hadRuntimeError = false;
+
+        Printer(Appendable out) {
+            this.out = out;
+        }
+
+        @Override
+        public void error(int line, int column, String message) {
+            report(line, column, "", message);
+        }
+
+        @Override
+        public void error(Token token, String message) {
+            int line = token.line();
+            int column = token.column;
+            if (token.isEOF()) {
+                report(line, column, " at end", message);
+            } else {
+                report(line, column, " at '" + token.text + "'", message);
+            }
+        }
+
+        @Override
+        public void runtimeError(Exception error) {
+            write(error.getMessage() + "\n[" + Source.describe(error.at) + "]");
+            hadRuntimeError = true;
+        }
+
+        private void report(int line, int column, String where, String message) {
+            write("[line " + line + ", column " + column + "] Error" + where + ": " + message);
+            hadError = true;
+        }
+
+        private void write(String line) {
+            try {
+                out.append(line).append('\n');
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+        }
+    }
+
+    class Buffer implements Reporter {
+        private final List<Consumer<Reporter>> errors = new ArrayList<>();
+
+        @Override
+        public void error(int line, int column, String message) {
+            errors.add(to -> to.error(line, column, message));
+        }
+
+        @Override
+        public void error(Token token, String message) {
+            errors.add(to -> to.error(token, message));
+        }
+
+        @Override
+        public void runtimeError(Exception error) {
+            errors.add(to -> to.runtimeError(error));
+        }
+
+        void replay(Reporter to) {
+            for (Consumer<Reporter> error : errors) {
+                error.accept(to);
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package wox;
+
+// used to unwind the interpreter's stack on `return`, so there is no need for
+// a stack trace
+@SuppressWarnings("serial")
+class Return extends RuntimeException {
+    // of the `return` statement, for when there is no function to return from
+    final int at;
+    final Object value;
+
+    Return(int at, Object value) {
+        super(null, null, false, false);
+        this.at = at;
+        this.value = value;
+    }
+}
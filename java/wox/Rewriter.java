@@ -0,0 +1,242 @@
+package wox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base class for tree-to-tree passes over the AST. Every visit method rebuilds
+ * its node from its rewritten children, but only when one of those children
+ * actually changed, so a pass that overrides nothing returns the very same
+ * tree. All recursion goes through `rewrite(Expr)` and `rewrite(Stmt)`.
+ */
+abstract class Rewriter implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    Stmt rewrite(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+
+    Expr rewrite(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    List<Stmt> rewriteStmts(List<Stmt> stmts) {
+        List<Stmt> result = null;
+        for (int i = 0; i < stmts.size(); i++) {
+            Stmt stmt = stmts.get(i);
+            Stmt rewritten = rewrite(stmt);
+            if (result == null && rewritten != stmt) {
+                result = new ArrayList<>(stmts.subList(0, i));
+            }
+            if (result != null)
+                result.add(rewritten);
+        }
+        return result == null ? stmts : result;
+    }
+
+    static boolean isUnparsed(Stmt.Function stmt) {
+        return stmt.body instanceof LazyBody && !((LazyBody) stmt.body).isParsed();
+    }
+
+    // rather than forcing an unparsed body, this pass is applied to it once
+    // something else does
+    Stmt.Function defer(Stmt.Function stmt) {
+        LazyBody body = ((LazyBody) stmt.body).then(parsed -> {
+            Stmt.Function function = stmt.withBody(parsed);
+            return ((Stmt.Function) visitFunctionStmt(function)).body;
+        });
+        return stmt.withBody(body);
+    }
+
+    List<Expr> rewriteExprs(List<Expr> exprs) {
+        List<Expr> result = null;
+        for (int i = 0; i < exprs.size(); i++) {
+            Expr expr = exprs.get(i);
+            Expr rewritten = rewrite(expr);
+            if (result == null && rewritten != expr) {
+                result = new ArrayList<>(exprs.subList(0, i));
+            }
+            if (result != null)
+                result.add(rewritten);
+        }
+        return result == null ? exprs : result;
+    }
+
+    ///////////// VISITING STATEMENTS
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        return stmt.withStatements(rewriteStmts(stmt.statements));
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = new ArrayList<>();
+        boolean changed = false;
+        for (Stmt.Function method : stmt.methods) {
+            Stmt.Function rewritten = (Stmt.Function) rewrite(method);
+            changed |= rewritten != method;
+            methods.add(rewritten);
+        }
+        if (!changed)
+            return stmt;
+        return stmt.withMethods(methods);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        return stmt.withExpression(rewrite(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        if (isUnparsed(stmt))
+            return defer(stmt);
+        return stmt.withBody(rewriteStmts(stmt.body));
+    }
+
+    @Override
+    public Stmt visitLoopStmt(Stmt.Loop stmt) {
+        return stmt.withStatements(rewriteStmts(stmt.statements));
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        return stmt.withExpression(rewrite(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        return stmt.withValue(rewrite(stmt.value));
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        return stmt.withInitializer(rewrite(stmt.initializer));
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt body = rewrite(stmt.body);
+        if (condition == stmt.condition && body == stmt.body)
+            return stmt;
+        return new Stmt.While(condition, body);
+    }
+
+    ///////////// VISITING EXPRESSIONS
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        return expr.withValue(rewrite(expr.value));
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right)
+            return expr;
+        return new Expr.Binary(left, expr.operator, expr.at, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = rewrite(expr.callee);
+        List<Expr> arguments = rewriteExprs(expr.arguments);
+        if (callee == expr.callee && arguments == expr.arguments)
+            return expr;
+        return new Expr.Call(callee, expr.at, arguments);
+    }
+
+    @Override
+    public Expr visitDoExpr(Expr.Do expr) {
+        return expr.withBody(rewriteExprs(expr.body));
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        return expr.withObject(rewrite(expr.object));
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        return expr.withExpression(rewrite(expr.expression));
+    }
+
+    @Override
+    public Expr visitIfExpr(Expr.If expr) {
+        Expr condition = rewrite(expr.condition);
+        Expr whenTrue = rewrite(expr.when_true);
+        Expr whenFalse = rewrite(expr.when_false);
+        if (condition == expr.condition && whenTrue == expr.when_true && whenFalse == expr.when_false)
+            return expr;
+        return new Expr.If(condition, whenTrue, whenFalse);
+    }
+
+    @Override
+    public Expr visitInlineExpr(Expr.Inline expr) {
+        Expr.Call call = (Expr.Call) rewrite(expr.call);
+        Expr body = rewrite(expr.body);
+        if (call == expr.call && body == expr.body)
+            return expr;
+        return new Expr.Inline(call, expr.callee, expr.declared, body);
+    }
+
+    @Override
+    public Expr visitLetExpr(Expr.Let expr) {
+        Expr definition = rewrite(expr.definition);
+        Expr body = rewrite(expr.body);
+        if (definition == expr.definition && body == expr.body)
+            return expr;
+        return new Expr.Let(expr.variable, expr.at, definition, body);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitMemoExpr(Expr.Memo expr) {
+        return expr.withExpression(rewrite(expr.expression));
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = rewrite(expr.object);
+        Expr value = rewrite(expr.value);
+        if (object == expr.object && value == expr.value)
+            return expr;
+        return new Expr.Set(object, expr.name, expr.at, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitTupleExpr(Expr.Tuple expr) {
+        return expr.withElements(rewriteExprs(expr.elements));
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        return expr.withRight(rewrite(expr.right));
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitVectorExpr(Expr.Vector expr) {
+        return expr.withElements(rewriteExprs(expr.elements));
+    }
+}
@@ -0,0 +1,126 @@
+package wox;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Compiled scripts by their source, so that a popular script is parsed and
+ * optimized once rather than on every request. The cache is bounded by the
+ * total length of the sources it holds, a rough stand-in for the size of
+ * their trees, and evicts the least recently used scripts beyond that.
+ *
+ * Entries are looked up by the source's hash, then compared in full, so two
+ * sources are never mixed up. A source requested by several threads while
+ * it is being compiled is compiled only once, by the first of them, with the
+ * others waiting for its result. Sources that fail to compile are not kept,
+ * and everyone waiting for them gets the same `IllegalArgumentException`.
+ *
+ * Evicted scripts are closed, giving back the positions of their sources,
+ * see `PreparedScript`, once the runs going on are done. Whoever wants to
+ * keep a script around for good should compile it themselves.
+ */
+public class ScriptCache {
+    // in characters of source
+    private final long capacity;
+    // in order of use, least recent first
+    private final LinkedHashMap<String, CompletableFuture<PreparedScript>> scripts =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public ScriptCache(long capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.capacity = capacity;
+    }
+
+    // throws an `IllegalArgumentException` listing the syntax errors, if any
+    public PreparedScript get(String source) {
+        CompletableFuture<PreparedScript> script;
+        boolean missed;
+        synchronized (this) {
+            script = scripts.get(source);
+            missed = script == null;
+            if (missed) {
+                misses++;
+                script = new CompletableFuture<>();
+                scripts.put(source, script);
+                weight += source.length();
+                evict(source);
+            } else {
+                hits++;
+            }
+        }
+
+        // whoever missed compiles, outside of the lock
+        if (missed) {
+            try {
+                script.complete(PreparedScript.compile(source));
+            } catch (RuntimeException | Error error) {
+                // nobody may be left waiting
+                synchronized (this) {
+                    if (scripts.remove(source, script))
+                        weight -= source.length();
+                }
+                script.completeExceptionally(error);
+            }
+        }
+
+        try {
+            return script.join();
+        } catch (CompletionException error) {
+            if (error.getCause() instanceof Error)
+                throw (Error) error.getCause();
+            throw (RuntimeException) error.getCause();
+        }
+    }
+
+    // drops the least recently used scripts, but never `kept`, until the
+    // sources fit
+    private void evict(String kept) {
+        Iterator<Map.Entry<String, CompletableFuture<PreparedScript>>> eldest = scripts.entrySet().iterator();
+        while (weight > capacity && eldest.hasNext()) {
+            Map.Entry<String, CompletableFuture<PreparedScript>> entry = eldest.next();
+            String source = entry.getKey();
+            if (source.equals(kept))
+                break;
+            eldest.remove();
+            // once it is compiled, if it is still being compiled
+            entry.getValue().thenAccept(PreparedScript::close);
+            weight -= source.length();
+            evictions++;
+        }
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return scripts.size();
+    }
+
+    // total length of the sources held
+    public synchronized long weight() {
+        return weight;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ScriptCache[" + scripts.size() + " scripts, " + weight + "/" + capacity + " characters, " + hits
+                + " hits, " + misses + " misses, " + evictions + " evictions]";
+    }
+}
@@ -0,0 +1,273 @@
+package wox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jdk.net.ExtendedSocketOptions;
+
+/**
+ * Runs scripts sent to it over a Unix domain socket, with `jwox --server`, so
+ * that running one does not pay for starting and warming up a JVM. `Client`
+ * is what sends them.
+ *
+ * A client sends the length of a script followed by the script itself, and
+ * gets back frames of what the script prints (`STDOUT`) and the errors it
+ * reports (`STDERR`), each a kind, a length and as many bytes, as they are
+ * written, and finally an `EXIT` frame with the code that `jwox script` would
+ * have exited with. Scripts longer than `MAX_SCRIPT` bytes are turned away
+ * with an error, and exit code 76, rather than read. Every script runs in a
+ * `Context` of its own, on a thread of its own, so scripts neither see nor
+ * wait for each other. A client that goes away before its script is done
+ * takes the script with it: the run is cancelled, along with its tasks.
+ *
+ * Only the user running the server is served, as told by the credentials of
+ * the other end of the socket, and the default socket lies in a directory
+ * no one else may enter, `$XDG_RUNTIME_DIR` or else one made in the
+ * temporary directory, so that no one can put a socket of their own in its
+ * place. `Client` in turn only talks to a socket of its user's.
+ *
+ * What a script prints is sent whenever its output is flushed, i.e., every
+ * so many characters and before every error, as it would be written to
+ * standard output.
+ */
+class Server {
+    static final byte STDOUT = 1;
+    static final byte STDERR = 2;
+    static final byte EXIT = 3;
+    // in bytes
+    static final int MAX_SCRIPT = 64 << 20;
+
+    private static final String WARM_UP = "fn f(n) { n * 2 } var i = 0; while (i < 1000) { i = i + f(1) / 2; } print i;";
+
+    private final Path socket;
+    private final ExecutorService threads;
+
+    Server(Path socket) {
+        this.socket = socket;
+        AtomicInteger count = new AtomicInteger();
+        this.threads = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "wox-run-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // where the server listens unless told otherwise, one per user
+    static Path defaultSocket() {
+        String runtime = System.getenv("XDG_RUNTIME_DIR");
+        Path directory = runtime != null && !runtime.isEmpty() ? Paths.get(runtime)
+                : Paths.get(System.getProperty("java.io.tmpdir"), "wox-" + System.getProperty("user.name"));
+        return directory.resolve("wox.sock");
+    }
+
+    // whether `user` is the one running this JVM
+    static boolean isUs(UserPrincipal user) {
+        return user.getName().equals(System.getProperty("user.name"));
+    }
+
+    void serve() throws IOException {
+        if (socket.equals(defaultSocket()))
+            secure(socket.getParent());
+        if (Files.exists(socket)) {
+            if (listening(socket))
+                throw new IOException("A server is already listening on " + socket + "!");
+            // left over from a server that did not get to clean up
+            Files.delete(socket);
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(socket);
+                } catch (IOException error) {
+                    // nothing to be done on the way out
+                }
+            }));
+            warmUp();
+            System.err.println("Listening on " + socket);
+            for (;;) {
+                SocketChannel client = server.accept();
+                UserPrincipal user = client.getOption(ExtendedSocketOptions.SO_PEERCRED).user();
+                if (!isUs(user)) {
+                    System.err.println("Turned away a client of " + user.getName());
+                    client.close();
+                    continue;
+                }
+                threads.execute(() -> serve(client));
+            }
+        }
+    }
+
+    private void serve(SocketChannel client) {
+        try (client) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+            int length = in.readInt();
+            int code;
+            if (length < 0 || length > MAX_SCRIPT) {
+                // not worth allocating, whether it is a script at all or not
+                new Frames(out, STDERR).write("Scripts may be at most " + MAX_SCRIPT + " bytes long, not " + length
+                        + ".\n");
+                // exit using relevant error code from UNIX "sysexits.h" header
+                code = 76;
+            } else {
+                byte[] script = new byte[length];
+                in.readFully(script);
+                Frames err = new Frames(out, STDERR);
+                try (Context context = new Context(new Frames(out, STDOUT), err)) {
+                    watch(client, context);
+                    code = run(context, new String(script, Charset.defaultCharset()), err);
+                }
+            }
+            synchronized (out) {
+                out.writeByte(EXIT);
+                out.writeInt(code);
+                out.flush();
+            }
+        } catch (IOException | UncheckedIOException error) {
+            // the client went away, and its script with it
+        }
+    }
+
+    // cancels the run in `context` once the client is gone, which sends
+    // nothing after its script
+    private void watch(SocketChannel client, Context context) {
+        threads.execute(() -> {
+            // straight from the channel, as its streams would lock out the
+            // frames written meanwhile
+            ByteBuffer buffer = ByteBuffer.allocate(16);
+            try {
+                while (client.read(buffer.clear()) >= 0) {
+                    // whatever else it sends is of no interest
+                }
+            } catch (IOException error) {
+                // closed, by either end
+            }
+            context.cancel();
+        });
+    }
+
+    // what `jwox script` exits with, running `script` in `context`
+    static int run(Context context, String script, Writer err) {
+        try {
+            try {
+                context.run(script, true);
+            } catch (RuntimeException | StackOverflowError error) {
+                context.flush();
+                err.write("Internal error: " + error + "\n");
+                return 70;
+            }
+            context.flush();
+            // exit using relevant error code from UNIX "sysexits.h" header
+            if (context.hadError())
+                return 65;
+            if (context.hadRuntimeError())
+                return 70;
+            return 0;
+        } catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+    }
+
+    // makes `directory` unless it is there, and makes sure it is ours and
+    // no one else may enter it
+    private static void secure(Path directory) throws IOException {
+        if (Files.notExists(directory, LinkOption.NOFOLLOW_LINKS))
+            Files.createDirectories(directory,
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        PosixFileAttributes attributes = Files.readAttributes(directory, PosixFileAttributes.class,
+                LinkOption.NOFOLLOW_LINKS);
+        Set<PosixFilePermission> others = EnumSet.range(PosixFilePermission.GROUP_READ,
+                PosixFilePermission.OTHERS_EXECUTE);
+        if (!attributes.isDirectory() || !isUs(attributes.owner())
+                || !Collections.disjoint(attributes.permissions(), others))
+            throw new IOException(directory + " must be a directory of yours that no one else may enter!");
+    }
+
+    private static boolean listening(Path socket) {
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+            return true;
+        } catch (IOException error) {
+            return false;
+        }
+    }
+
+    // loads and compiles the common paths before the first client comes
+    private static void warmUp() {
+        for (int i = 0; i < 20; i++) {
+            StringWriter err = new StringWriter();
+            try (Context context = new Context(new StringWriter(), err)) {
+                run(context, WARM_UP, err);
+            }
+        }
+    }
+
+    /**
+     * Sends whatever is written to it as frames of one kind, shared with the
+     * frames of the other kind, which is why they lock the stream.
+     */
+    private static class Frames extends Writer {
+        private final DataOutputStream out;
+        private final byte kind;
+        private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        Frames(DataOutputStream out, byte kind) {
+            this.out = out;
+            this.kind = kind;
+        }
+
+        @Override
+        public synchronized void write(char[] chars, int offset, int length) throws IOException {
+            if (length == 0)
+                return;
+            ByteBuffer bytes = encoder.encode(CharBuffer.wrap(chars, offset, length));
+            synchronized (out) {
+                out.writeByte(kind);
+                out.writeInt(bytes.remaining());
+                out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+                out.flush();
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package wox;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+/**
+ * Hands every parsed source a range of positions of its own, so that a tree
+ * node can point back into any source with a single `int` instead of holding
+ * on to a `Token`. A position is only turned into a line and column when a
+ * diagnostic asks for one, using a table of line starts that is built the
+ * first time it is needed.
+ *
+ * Ranges are handed out one after the other, starting over from the bottom
+ * once the positions run out, so that the ranges of released sources are
+ * used again.
+ *
+ * The range of a source begins at its `origin`, where its first character
+ * sits in the text. Sources covering part of a `Document` share their origin
+ * with the segment they cover, so their positions follow it when the text
+ * before it is edited.
+ */
+class Source {
+    // position 0 is never handed out and stands for no position at all
+    private static final TreeMap<Integer, Source> sources = new TreeMap<>();
+    private static int next = 1;
+
+    final int base;
+    private int size;
+    private final Supplier<String> text;
+    private final Token.Origin origin;
+    // offsets of the first character of every line of `indexed`
+    private String indexed;
+    private int[] starts;
+
+    // a whole source on its own, such as a script or a line at the prompt
+    Source(String text) {
+        this(() -> text, new Token.Origin(1, 0), text.length());
+    }
+
+    // reserves positions for `size` characters from `origin` on
+    Source(Supplier<String> text, Token.Origin origin, int size) {
+        this.text = text;
+        this.origin = origin;
+        this.size = size;
+        synchronized (sources) {
+            base = reserve(size);
+            next = base + size + 1;
+            sources.put(base, this);
+        }
+    }
+
+    // the first free range of `size + 1` positions from `next` on, or failing
+    // that from the bottom
+    private static int reserve(int size) {
+        int from = next;
+        boolean wrapped = false;
+        for (;;) {
+            if (from > Integer.MAX_VALUE - size - 1) {
+                if (wrapped)
+                    throw new IllegalStateException("out of source positions");
+                from = 1;
+                wrapped = true;
+            }
+            // sources do not overlap, so only the last one starting within
+            // the range can reach into it
+            Map.Entry<Integer, Source> last = sources.floorEntry(from + size);
+            if (last == null || last.getKey() + last.getValue().size < from)
+                return from;
+            from = last.getKey() + last.getValue().size + 1;
+        }
+    }
+
+    // position of the character at `offset` in the text
+    int at(int offset) {
+        return base + offset - origin.offset;
+    }
+
+    int at(Token token) {
+        return at(token.offset());
+    }
+
+    // gives back the positions past the first `size` characters, when
+    // nothing was reserved after them in the meantime
+    void trim(int size) {
+        synchronized (sources) {
+            if (next == base + this.size + 1)
+                next = base + size + 1;
+            this.size = size;
+        }
+    }
+
+    // forgets the source once no node points into it anymore; releasing it
+    // again does nothing, even if its range has been handed out anew
+    void release() {
+        synchronized (sources) {
+            sources.remove(base, this);
+        }
+    }
+
+    private static Source of(int position) {
+        synchronized (sources) {
+            Map.Entry<Integer, Source> entry = sources.floorEntry(position);
+            if (entry == null || position > entry.getKey() + entry.getValue().size)
+                return null;
+            return entry.getValue();
+        }
+    }
+
+    static int line(int position) {
+        Source source = of(position);
+        return source == null ? 0 : source.lineAt(source.offset(position)) + 1;
+    }
+
+    static int column(int position) {
+        Source source = of(position);
+        if (source == null)
+            return 0;
+        int offset = source.offset(position);
+        synchronized (source) {
+            return offset - source.starts[source.lineAt(offset)] + 1;
+        }
+    }
+
+    static String describe(int position) {
+        Source source = of(position);
+        if (source == null)
+            return "unknown position";
+        return "line " + line(position) + ", column " + column(position);
+    }
+
+    private int offset(int position) {
+        return origin.offset + position - base;
+    }
+
+    // index of the line containing `offset`, counting from 0
+    private synchronized int lineAt(int offset) {
+        String current = text.get();
+        if (current != indexed) {
+            int[] found = new int[16];
+            int count = 1;
+            for (int i = current.indexOf('\n'); i >= 0; i = current.indexOf('\n', i + 1)) {
+                if (count == found.length)
+                    found = Arrays.copyOf(found, count * 2);
+                found[count++] = i + 1;
+            }
+            starts = Arrays.copyOf(found, count);
+            indexed = current;
+        }
+        int line = Arrays.binarySearch(starts, offset);
+        return line >= 0 ? line : -line - 2;
+    }
+}
@@ -1,8 +1,9 @@
 package wox;
 
 import java.util.List;
+import java.util.function.Consumer;
 
-abstract class Stmt {
+sealed interface Stmt {
   interface Visitor<R> {
     R visitBlockStmt(Block stmt);
 
@@ -23,136 +24,440 @@ abstract class Stmt {
     R visitWhileStmt(While stmt);
   }
 
-  static class Block extends Stmt {
+  int BLOCK = 0;
+  int CLASS = 1;
+  int EXPRESSION = 2;
+  int FUNCTION = 3;
+  int LOOP = 4;
+  int PRINT = 5;
+  int RETURN = 6;
+  int VAR = 7;
+  int WHILE = 8;
+  int KINDS = 9;
+
+  // the same as `accept`, but dispatching with a switch over `kind()`
+  static <R> R dispatch(Stmt stmt, Visitor<R> visitor) {
+    switch (stmt.kind()) {
+      case BLOCK:
+        return visitor.visitBlockStmt((Block) stmt);
+      case CLASS:
+        return visitor.visitClassStmt((Class) stmt);
+      case EXPRESSION:
+        return visitor.visitExpressionStmt((Expression) stmt);
+      case FUNCTION:
+        return visitor.visitFunctionStmt((Function) stmt);
+      case LOOP:
+        return visitor.visitLoopStmt((Loop) stmt);
+      case PRINT:
+        return visitor.visitPrintStmt((Print) stmt);
+      case RETURN:
+        return visitor.visitReturnStmt((Return) stmt);
+      case VAR:
+        return visitor.visitVarStmt((Var) stmt);
+      case WHILE:
+        return visitor.visitWhileStmt((While) stmt);
+      default:
+        throw new IllegalStateException("unknown kind " + stmt.kind());
+    }
+  }
+
+  final class Block implements Stmt {
     Block(List<Stmt> statements) {
       this.statements = statements;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitBlockStmt(this);
     }
 
+    @Override
+    public int kind() {
+      return BLOCK;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+    }
+
+    @Override
+    public void forEachStmt(Consumer<? super Stmt> action) {
+      if (statements != null)
+        statements.forEach(action);
+    }
+
+    Block withStatements(List<Stmt> statements) {
+      if (statements == this.statements)
+        return this;
+      return new Block(statements);
+    }
+
     final List<Stmt> statements;
   }
 
-  static class Class extends Stmt {
-    Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
+  final class Class implements Stmt {
+    Class(String name, int at, Expr.Variable superclass, List<Stmt.Function> methods) {
       this.name = name;
+      this.at = at;
       this.superclass = superclass;
       this.methods = methods;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitClassStmt(this);
     }
 
-    final Token name;
+    @Override
+    public int kind() {
+      return CLASS;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+      if (superclass != null)
+        action.accept(superclass);
+    }
+
+    @Override
+    public void forEachStmt(Consumer<? super Stmt> action) {
+      if (methods != null)
+        methods.forEach(action);
+    }
+
+    Class withName(String name) {
+      if (name == this.name)
+        return this;
+      return new Class(name, at, superclass, methods);
+    }
+
+    Class withAt(int at) {
+      if (at == this.at)
+        return this;
+      return new Class(name, at, superclass, methods);
+    }
+
+    Class withSuperclass(Expr.Variable superclass) {
+      if (superclass == this.superclass)
+        return this;
+      return new Class(name, at, superclass, methods);
+    }
+
+    Class withMethods(List<Stmt.Function> methods) {
+      if (methods == this.methods)
+        return this;
+      return new Class(name, at, superclass, methods);
+    }
+
+    final String name;
+    final int at;
     final Expr.Variable superclass;
     final List<Stmt.Function> methods;
   }
 
-  static class Expression extends Stmt {
+  final class Expression implements Stmt {
     Expression(Expr expression) {
       this.expression = expression;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitExpressionStmt(this);
     }
 
+    @Override
+    public int kind() {
+      return EXPRESSION;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+      if (expression != null)
+        action.accept(expression);
+    }
+
+    @Override
+    public void forEachStmt(Consumer<? super Stmt> action) {
+    }
+
+    Expression withExpression(Expr expression) {
+      if (expression == this.expression)
+        return this;
+      return new Expression(expression);
+    }
+
     final Expr expression;
   }
 
-  static class Function extends Stmt {
-    Function(Token name, List<Token> params, List<Stmt> body) {
+  final class Function implements Stmt {
+    Function(String name, int at, List<String> params, List<Stmt> body) {
       this.name = name;
+      this.at = at;
       this.params = params;
       this.body = body;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitFunctionStmt(this);
     }
 
-    final Token name;
-    final List<Token> params;
+    @Override
+    public int kind() {
+      return FUNCTION;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+    }
+
+    @Override
+    public void forEachStmt(Consumer<? super Stmt> action) {
+      if (body != null)
+        body.forEach(action);
+    }
+
+    Function withName(String name) {
+      if (name == this.name)
+        return this;
+      return new Function(name, at, params, body);
+    }
+
+    Function withAt(int at) {
+      if (at == this.at)
+        return this;
+      return new Function(name, at, params, body);
+    }
+
+    Function withParams(List<String> params) {
+      if (params == this.params)
+        return this;
+      return new Function(name, at, params, body);
+    }
+
+    Function withBody(List<Stmt> body) {
+      if (body == this.body)
+        return this;
+      return new Function(name, at, params, body);
+    }
+
+    final String name;
+    final int at;
+    final List<String> params;
     final List<Stmt> body;
   }
 
-  static class Loop extends Stmt {
+  final class Loop implements Stmt {
     Loop(List<Stmt> statements) {
       this.statements = statements;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitLoopStmt(this);
     }
 
+    @Override
+    public int kind() {
+      return LOOP;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+    }
+
+    @Override
+    public void forEachStmt(Consumer<? super Stmt> action) {
+      if (statements != null)
+        statements.forEach(action);
+    }
+
+    Loop withStatements(List<Stmt> statements) {
+      if (statements == this.statements)
+        return this;
+      return new Loop(statements);
+    }
+
     final List<Stmt> statements;
   }
 
-  static class Print extends Stmt {
+  final class Print implements Stmt {
     Print(Expr expression) {
       this.expression = expression;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitPrintStmt(this);
     }
 
+    @Override
+    public int kind() {
+      return PRINT;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+      if (expression != null)
+        action.accept(expression);
+    }
+
+    @Override
+    public void forEachStmt(Consumer<? super Stmt> action) {
+    }
+
+    Print withExpression(Expr expression) {
+      if (expression == this.expression)
+        return this;
+      return new Print(expression);
+    }
+
     final Expr expression;
   }
 
-  static class Return extends Stmt {
-    Return(Token keyword, Expr value) {
-      this.keyword = keyword;
+  final class Return implements Stmt {
+    Return(int at, Expr value) {
+      this.at = at;
       this.value = value;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitReturnStmt(this);
     }
 
-    final Token keyword;
+    @Override
+    public int kind() {
+      return RETURN;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+      if (value != null)
+        action.accept(value);
+    }
+
+    @Override
+    public void forEachStmt(Consumer<? super Stmt> action) {
+    }
+
+    Return withAt(int at) {
+      if (at == this.at)
+        return this;
+      return new Return(at, value);
+    }
+
+    Return withValue(Expr value) {
+      if (value == this.value)
+        return this;
+      return new Return(at, value);
+    }
+
+    final int at;
     final Expr value;
   }
 
-  static class Var extends Stmt {
-    Var(Token name, Expr initializer) {
+  final class Var implements Stmt {
+    Var(String name, int at, Expr initializer) {
       this.name = name;
+      this.at = at;
       this.initializer = initializer;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitVarStmt(this);
     }
 
-    final Token name;
+    @Override
+    public int kind() {
+      return VAR;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+      if (initializer != null)
+        action.accept(initializer);
+    }
+
+    @Override
+    public void forEachStmt(Consumer<? super Stmt> action) {
+    }
+
+    Var withName(String name) {
+      if (name == this.name)
+        return this;
+      return new Var(name, at, initializer);
+    }
+
+    Var withAt(int at) {
+      if (at == this.at)
+        return this;
+      return new Var(name, at, initializer);
+    }
+
+    Var withInitializer(Expr initializer) {
+      if (initializer == this.initializer)
+        return this;
+      return new Var(name, at, initializer);
+    }
+
+    final String name;
+    final int at;
     final Expr initializer;
   }
 
-  static class While extends Stmt {
+  final class While implements Stmt {
     While(Expr condition, Stmt body) {
       this.condition = condition;
       this.body = body;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitWhileStmt(this);
     }
 
+    @Override
+    public int kind() {
+      return WHILE;
+    }
+
+    @Override
+    public void forEachExpr(Consumer<? super Expr> action) {
+      if (condition != null)
+        action.accept(condition);
+    }
+
+    @Override
+    public void forEachStmt(Consumer<? super Stmt> action) {
+      if (body != null)
+        action.accept(body);
+    }
+
+    While withCondition(Expr condition) {
+      if (condition == this.condition)
+        return this;
+      return new While(condition, body);
+    }
+
+    While withBody(Stmt body) {
+      if (body == this.body)
+        return this;
+      return new While(condition, body);
+    }
+
     final Expr condition;
     final Stmt body;
   }
 
-  abstract <R> R accept(Visitor<R> visitor);
+  <R> R accept(Visitor<R> visitor);
+
+  int kind();
+
+  // calls `action` on every direct child Expr that is not `null`, in order
+  void forEachExpr(Consumer<? super Expr> action);
+
+  // calls `action` on every direct child Stmt that is not `null`, in order
+  void forEachStmt(Consumer<? super Stmt> action);
 }
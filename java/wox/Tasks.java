@@ -0,0 +1,194 @@
+package wox;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builtins for running functions concurrently: `spawn(f)` calls a function of
+ * no arguments on a thread of its own and returns its task, whose result
+ * `join(task)` waits for. Tasks talk through channels, made with
+ * `channel(capacity)`, on which `send(channel, value)` waits while the
+ * channel is full and `recv(channel)` while it is empty. A channel of
+ * capacity 0 hands every value over directly.
+ *
+ * A task shares the globals of the program and the variables its function
+ * closes over, which from the first spawn on are locked whenever they are
+ * used. Beyond that, tasks are only ordered by their channels and joins, so
+ * a variable that one task assigns while another reads it may well be seen
+ * late, unless it is updated with `cas(name, expected, value)`, which sets
+ * the global `name` to `value` only if it still equals `expected`, and says
+ * whether it did. A runtime error ends the task it happens in, and is raised
+ * again by `join`. Tasks left running when the program ends are not waited
+ * for, but are stopped along with it if it is cancelled, see `Cancellation`.
+ *
+ * Tasks run on virtual threads where the JDK has them, which is looked up at
+ * run time so as not to require one, and on a pool of threads otherwise.
+ */
+class Tasks {
+    private static final ExecutorService threads = threads();
+    // stands in for `nil` in channels, which cannot hold `null`
+    private static final Object NIL = new Object();
+
+    private Tasks() {
+    }
+
+    static class Task {
+        final Future<Object> result;
+
+        Task(Future<Object> result) {
+            this.result = result;
+        }
+
+        @Override
+        public String toString() {
+            return "<task>";
+        }
+    }
+
+    static class Channel {
+        final BlockingQueue<Object> queue;
+
+        Channel(int capacity) {
+            queue = capacity == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public String toString() {
+            return "<channel>";
+        }
+    }
+
+    private static class Spawn implements WoxCallable {
+        @Override
+        public int arity() {
+            return 1;
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            Object callee = arguments.get(0);
+            if (!(callee instanceof WoxCallable) || ((WoxCallable) callee).arity() != 0)
+                throw new Misuse("Argument 1 of `spawn` must be a function of no arguments!");
+            WoxCallable function = (WoxCallable) callee;
+
+            interpreter.share(function);
+            Interpreter task = new Interpreter(interpreter);
+            return new Task(threads.submit(() -> {
+                task.cancellation.enter();
+                try {
+                    return function.call(task, List.of());
+                } finally {
+                    task.cancellation.exit();
+                }
+            }));
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn spawn>";
+        }
+    }
+
+    private static class CompareAndSet implements WoxCallable {
+        @Override
+        public int arity() {
+            return 3;
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            Object name = arguments.get(0);
+            if (!(name instanceof String) || !interpreter.globals.defines((String) name))
+                throw new Misuse("Argument 1 of `cas` must be the name of a global!");
+            return interpreter.globals.compareAndSet((String) name, arguments.get(1), arguments.get(2));
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn cas>";
+        }
+    }
+
+    static void define(Environment builtins) {
+        builtins.define("spawn", new Spawn());
+        builtins.define("cas", new CompareAndSet());
+        builtins.define("join", new NativeFunction("join", 1, arguments -> join(arguments.get(0))));
+        builtins.define("channel", new NativeFunction("channel", 1, arguments -> {
+            Object capacity = arguments.get(0);
+            if (!(capacity instanceof Double) || (double) capacity != Math.floor((double) capacity)
+                    || (double) capacity < 0 || (double) capacity > Integer.MAX_VALUE)
+                throw new Misuse("Argument 1 of `channel` must be a capacity of 0 or more!");
+            return new Channel((int) (double) capacity);
+        }));
+        builtins.define("send", new NativeFunction("send", 2, arguments -> {
+            Object value = arguments.get(1);
+            try {
+                channel("send", arguments.get(0)).queue.put(value == null ? NIL : value);
+            } catch (InterruptedException error) {
+                throw interrupted("send");
+            }
+            return null;
+        }));
+        builtins.define("recv", new NativeFunction("recv", 1, arguments -> {
+            try {
+                Object value = channel("recv", arguments.get(0)).queue.take();
+                return value == NIL ? null : value;
+            } catch (InterruptedException error) {
+                throw interrupted("recv");
+            }
+        }));
+    }
+
+    private static Object join(Object task) {
+        if (!(task instanceof Task))
+            throw new Misuse("Argument 1 of `join` must be a task!");
+        try {
+            return ((Task) task).result.get();
+        } catch (InterruptedException error) {
+            throw interrupted("join");
+        } catch (ExecutionException error) {
+            // the task's own error, where it happened
+            Throwable cause = error.getCause();
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw (RuntimeException) cause;
+        }
+    }
+
+    private static Channel channel(String name, Object channel) {
+        if (!(channel instanceof Channel))
+            throw new Misuse("Argument 1 of `" + name + "` must be a channel!");
+        return (Channel) channel;
+    }
+
+    private static Misuse interrupted(String name) {
+        Thread.currentThread().interrupt();
+        return new Misuse("Interrupted while waiting in `" + name + "`!");
+    }
+
+    private static ExecutorService threads() {
+        try {
+            return (ExecutorService) MethodHandles.publicLookup()
+                    .findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+                            MethodType.methodType(ExecutorService.class))
+                    .invokeExact();
+        } catch (Throwable error) {
+            // not there, or a preview that is not enabled
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "wox-task-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
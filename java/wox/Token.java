@@ -20,15 +20,55 @@ public class Token {
     final TokenType type;
     final String text;
     final Object literal;
-    final int line;
     final int column;
+    // relative to `origin`, when the token has one
+    private int line;
+    private int offset;
+    private Origin origin = null;
 
     Token(TokenType type, String text, Object literal, int line, int column) {
+        this(type, text, literal, line, column, 0);
+    }
+
+    Token(TokenType type, String text, Object literal, int line, int column, int offset) {
         this.type = type;
         this.text = text;
         this.literal = literal;
         this.line = line;
         this.column = column;
+        this.offset = offset;
+    }
+
+    /**
+     * A movable position in the source that tokens can be anchored to. Tokens
+     * after an edit only change their line and offset, and all tokens sharing
+     * an origin are moved at once by moving it.
+     */
+    static class Origin {
+        int line;
+        int offset;
+
+        Origin(int line, int offset) {
+            this.line = line;
+            this.offset = offset;
+        }
+    }
+
+    int line() {
+        return origin == null ? line : origin.line + line;
+    }
+
+    // index of the token's first character in the source
+    int offset() {
+        return origin == null ? offset : origin.offset + offset;
+    }
+
+    void anchor(Origin to) {
+        int line = line();
+        int offset = offset();
+        this.origin = to;
+        this.line = line - to.line;
+        this.offset = offset - to.offset;
     }
 
     public boolean isEOF() {
@@ -36,7 +76,7 @@ public class Token {
     }
 
     public String lnColString() {
-        return "line " + this.line + ", column " + this.column;
+        return "line " + line() + ", column " + this.column;
     }
 
     public String toString() {
@@ -52,7 +92,7 @@ public class Token {
         if (literal != null) {
             buf += " " + literal;
         }
-        buf += " @ " + line + ":" + column + ")";
+        buf += " @ " + line() + ":" + column + ")";
         return buf;
     }
 }
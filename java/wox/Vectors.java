@@ -0,0 +1,231 @@
+package wox;
+
+import java.util.List;
+
+/**
+ * Builtins over vectors, most of them bulk numeric operations that work on
+ * the unboxed arrays of numeric `WoxVector`s rather than element by element.
+ *
+ * The kernels are plain scalar loops rather than Vector API ones, as the
+ * incubating Vector API would have to be added with `--add-modules` to every
+ * compile and launch. Whether the JIT turns any of them into SIMD instructions
+ * depends on the JVM and the processor, and nothing here counts on it: the
+ * element-wise loops are simple counted loops, which C2 may vectorize, while
+ * the reductions most likely stay scalar, as the JIT will not reorder
+ * floating-point additions. They keep four independent accumulators so that
+ * each addition need not wait for the one before it. For the same reason,
+ * `sum` and `dot` may differ in the last bits from adding the elements up one
+ * by one.
+ */
+class Vectors {
+    private Vectors() {
+    }
+
+    static void define(Environment globals) {
+        define(globals, "len", 1, args -> (double) list("len", args, 0).size());
+        define(globals, "at", 2, args -> {
+            List<Object> list = list("at", args, 0);
+            return list.get(index("at", args, 1, list.size()));
+        });
+        define(globals, "range", 1, args -> {
+            int n = index("range", args, 0, Integer.MAX_VALUE);
+            double[] result = new double[n];
+            for (int i = 0; i < n; i++) {
+                result[i] = i;
+            }
+            return new WoxVector(result, n);
+        });
+
+        define(globals, "sum", 1, args -> {
+            WoxVector v = numeric("sum", args, 0);
+            return sum(v.numbers(), v.size());
+        });
+        define(globals, "dot", 2, args -> {
+            WoxVector a = numeric("dot", args, 0);
+            WoxVector b = sameSize("dot", a, numeric("dot", args, 1));
+            return dot(a.numbers(), b.numbers(), a.size());
+        });
+        define(globals, "min", 1, args -> {
+            WoxVector v = nonEmpty("min", numeric("min", args, 0));
+            return min(v.numbers(), v.size());
+        });
+        define(globals, "max", 1, args -> {
+            WoxVector v = nonEmpty("max", numeric("max", args, 0));
+            return max(v.numbers(), v.size());
+        });
+        define(globals, "add", 2, args -> {
+            WoxVector a = numeric("add", args, 0);
+            WoxVector b = sameSize("add", a, numeric("add", args, 1));
+            return new WoxVector(add(a.numbers(), b.numbers(), a.size()), a.size());
+        });
+        define(globals, "mul", 2, args -> {
+            WoxVector a = numeric("mul", args, 0);
+            WoxVector b = sameSize("mul", a, numeric("mul", args, 1));
+            return new WoxVector(mul(a.numbers(), b.numbers(), a.size()), a.size());
+        });
+        define(globals, "scale", 2, args -> {
+            WoxVector v = numeric("scale", args, 0);
+            return new WoxVector(scale(v.numbers(), number("scale", args, 1), v.size()), v.size());
+        });
+        define(globals, "prefix_sum", 1, args -> {
+            WoxVector v = numeric("prefix_sum", args, 0);
+            return new WoxVector(prefixSum(v.numbers(), v.size()), v.size());
+        });
+    }
+
+    // all of them pure, making new vectors rather than changing their arguments
+    private static void define(Environment globals, String name, int arity, NativeFunction.Body body) {
+        globals.define(name, new NativeFunction(name, arity, true, body));
+    }
+
+    ///////////// KERNELS, over the first `n` elements of their arrays
+
+    // reductions, scalar with four accumulators whose additions can overlap
+
+    static double sum(double[] a, int n) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += a[i];
+            s1 += a[i + 1];
+            s2 += a[i + 2];
+            s3 += a[i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += a[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    static double dot(double[] a, double[] b, int n) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += a[i] * b[i];
+            s1 += a[i + 1] * b[i + 1];
+            s2 += a[i + 2] * b[i + 2];
+            s3 += a[i + 3] * b[i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += a[i] * b[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    // `NaN` if any element is
+    static double min(double[] a, int n) {
+        double m0 = a[0], m1 = a[0], m2 = a[0], m3 = a[0];
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            m0 = Math.min(m0, a[i]);
+            m1 = Math.min(m1, a[i + 1]);
+            m2 = Math.min(m2, a[i + 2]);
+            m3 = Math.min(m3, a[i + 3]);
+        }
+        for (; i < n; i++) {
+            m0 = Math.min(m0, a[i]);
+        }
+        return Math.min(Math.min(m0, m1), Math.min(m2, m3));
+    }
+
+    static double max(double[] a, int n) {
+        double m0 = a[0], m1 = a[0], m2 = a[0], m3 = a[0];
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            m0 = Math.max(m0, a[i]);
+            m1 = Math.max(m1, a[i + 1]);
+            m2 = Math.max(m2, a[i + 2]);
+            m3 = Math.max(m3, a[i + 3]);
+        }
+        for (; i < n; i++) {
+            m0 = Math.max(m0, a[i]);
+        }
+        return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+    }
+
+    static double[] add(double[] a, double[] b, int n) {
+        double[] result = new double[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = a[i] + b[i];
+        }
+        return result;
+    }
+
+    static double[] mul(double[] a, double[] b, int n) {
+        double[] result = new double[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = a[i] * b[i];
+        }
+        return result;
+    }
+
+    static double[] scale(double[] a, double k, int n) {
+        double[] result = new double[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = a[i] * k;
+        }
+        return result;
+    }
+
+    // inherently sequential, but still without boxing
+    static double[] prefixSum(double[] a, int n) {
+        double[] result = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += a[i];
+            result[i] = sum;
+        }
+        return result;
+    }
+
+    ///////////// ARGUMENTS
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> list(String name, List<Object> args, int i) {
+        if (!(args.get(i) instanceof List))
+            throw misuse(name, i, "a vector");
+        return (List<Object>) args.get(i);
+    }
+
+    private static WoxVector numeric(String name, List<Object> args, int i) {
+        Object arg = args.get(i);
+        if (!(arg instanceof WoxVector) || !((WoxVector) arg).isNumeric())
+            throw misuse(name, i, "a vector of numbers");
+        return (WoxVector) arg;
+    }
+
+    private static double number(String name, List<Object> args, int i) {
+        if (!(args.get(i) instanceof Double))
+            throw misuse(name, i, "a number");
+        return (double) args.get(i);
+    }
+
+    // a whole number below `bound`
+    private static int index(String name, List<Object> args, int i, int bound) {
+        double value = number(name, args, i);
+        if (value != Math.floor(value) || value < 0 || value >= bound) {
+            StringBuilder message = new StringBuilder("Index out of range! `").append(name).append("` got ");
+            Numbers.format(value, message);
+            throw new Misuse(message.append('.').toString());
+        }
+        return (int) value;
+    }
+
+    private static WoxVector sameSize(String name, WoxVector a, WoxVector b) {
+        if (a.size() != b.size())
+            throw new Misuse("Vectors of different lengths (" + a.size() + " and " + b.size()
+                    + ") passed to `" + name + "`!");
+        return b;
+    }
+
+    private static WoxVector nonEmpty(String name, WoxVector v) {
+        if (v.size() == 0)
+            throw new Misuse("`" + name + "` of an empty vector!");
+        return v;
+    }
+
+    private static Misuse misuse(String name, int i, String expected) {
+        return new Misuse(
+                "Argument " + (i + 1) + " of `" + name + "` must be " + expected + "!");
+    }
+}
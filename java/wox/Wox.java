@@ -6,16 +6,27 @@ import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.List;
 
 public class Wox {
-    private static final Interpreter interpreter = new Interpreter();
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    // the context of the command line, printing to standard output and error
+    private static final Context context = new Context(Output.stdout(), System.err);
+    // where syntax errors go when nobody says otherwise
+    static final Reporter reporter = context.reporter();
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jwox [script]");
+        if (args.length > 0 && args[0].equals("--server")) {
+            if (args.length > 2) {
+                System.out.println("Usage: jwox --server [socket]");
+                System.exit(64);
+            }
+            try {
+                new Server(args.length == 2 ? Paths.get(args[1]) : Server.defaultSocket()).serve();
+            } catch (IOException error) {
+                System.err.println(error.getMessage());
+                System.exit(69);
+            }
+        } else if (args.length > 1) {
+            System.out.println("Usage: jwox [--server [socket] | script]");
             // exit using relevant error code from UNIX "sysexits.h" header
             System.exit(64);
         } else if (args.length == 1) {
@@ -27,12 +38,17 @@ public class Wox {
 
     private static void runFile(String path) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        try {
+            context.run(new String(bytes, Charset.defaultCharset()), true);
+        } finally {
+            // even if the interpreter itself gave out
+            context.flush();
+        }
 
         // exit using relevant error code from UNIX "sysexits.h" header
-        if (hadError)
+        if (context.hadError())
             System.exit(65);
-        if (hadRuntimeError)
+        if (context.hadRuntimeError())
             System.exit(70);
     }
 
@@ -41,70 +57,20 @@ public class Wox {
         BufferedReader reader = new BufferedReader(input);
 
         for (;;) {
+            context.flush();
             System.out.print("> ");
             String line = reader.readLine();
             if (line == null)
                 break;
             if (line.startsWith(":Q") || line.startsWith(":q")) {
+                context.flush();
                 System.out.println("Quitting...");
                 System.exit(64);
             }
-            run(line);
+            context.run(line, false);
             // if the user makes a mistake, it shouldn't *kill* the interactive
             // loop
-            hadError = false;
-        }
-    }
-
-    private static void run(String source) {
-        Lexer lexer = new Lexer(source);
-        List<Token> tokens = lexer.lex();
-
-        Parser parser = new Parser(tokens);
-        List<Stmt> stmts = parser.parse();
-
-        if (hadError)
-            return;
-
-        interpreter.interpret(stmts);
-    }
-
-    static void error(int line, String msg) {
-        report(line, "", msg);
-    }
-
-    static void error(int line, int column, String msg) {
-        report(line, column, "", msg);
-    }
-
-    static void error(Token token, String message) {
-        int line = token.line;
-        int column = token.column;
-        if (token.isEOF()) {
-            report(line, column, " at end", message);
-        } else {
-            report(line, column, " at '" + token.text + "'", message);
+            context.clearErrors();
         }
     }
-
-    private static void report(int line, String where, String msg) {
-        System.err.println(
-                "[line " + line + "] Error" + where + ": " + msg);
-        hadError = true;
-    }
-
-    private static void report(int line, int column, String where, String msg) {
-        System.err.println("[line " + line + ", column " + column + "] Error"
-                + where + ": " + msg);
-        hadError = true;
-    }
-
-    static void runtimeException(Exception error) {
-        System.err.println(error.getMessage()
-                + "\n["
-                + error.token.lnColString()
-                + "]");
-        hadRuntimeError = true;
-    }
-
-}
\ No newline at end of file
+}
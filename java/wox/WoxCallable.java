@@ -0,0 +1,9 @@
+package wox;
+
+import java.util.List;
+
+interface WoxCallable {
+    int arity();
+
+    Object call(Interpreter interpreter, List<Object> arguments);
+}
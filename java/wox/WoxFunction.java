@@ -0,0 +1,42 @@
+package wox;
+
+import java.util.List;
+
+class WoxFunction implements WoxCallable {
+    final Stmt.Function declaration;
+    private final Environment closure;
+
+    WoxFunction(Stmt.Function declaration, Environment closure) {
+        this.declaration = declaration;
+        this.closure = closure;
+    }
+
+    // what the function closes over, which tasks calling it share
+    Environment closure() {
+        return closure;
+    }
+
+    @Override
+    public int arity() {
+        return declaration.params.size();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        Environment envr = new Environment(closure);
+        for (int i = 0; i < declaration.params.size(); i++) {
+            envr.define(declaration.params.get(i), arguments.get(i));
+        }
+
+        try {
+            return interpreter.executeBlock(declaration.body, envr);
+        } catch (Return ret) {
+            return ret.value;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + declaration.name + ">";
+    }
+}
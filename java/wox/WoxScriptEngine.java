@@ -0,0 +1,279 @@
+package wox;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+/**
+ * Wox behind `javax.script`. Scripts are compiled into a `PreparedScript`,
+ * by way of the factory's cache when evaluated and on their own when
+ * compiled, and run with the engine scope of their context as their globals,
+ * which is used as it is rather than copied, and with the global scope
+ * behind it.
+ * Functions a script defines stay in its engine scope, from where
+ * `invokeFunction` calls them.
+ *
+ * Numbers from the host are turned into the `Double`s Wox works with as they
+ * come in, i.e., as the program looks them up in either scope and in the
+ * arguments of an invocation, leaving the scopes themselves as they are.
+ * Wox has no objects yet, so it has no methods to invoke either.
+ *
+ * Whatever goes wrong in a run, including a stack overflow, comes out as a
+ * `ScriptException`.
+ */
+public class WoxScriptEngine extends AbstractScriptEngine implements Compilable, Invocable {
+    private final WoxScriptEngineFactory factory;
+
+    WoxScriptEngine(WoxScriptEngineFactory factory) {
+        this.factory = factory;
+    }
+
+    private class Compiled extends CompiledScript {
+        final PreparedScript script;
+
+        Compiled(PreparedScript script) {
+            this.script = script;
+        }
+
+        @Override
+        public Object eval(ScriptContext context) throws ScriptException {
+            return run(script, context);
+        }
+
+        @Override
+        public ScriptEngine getEngine() {
+            return WoxScriptEngine.this;
+        }
+    }
+
+    @Override
+    public Object eval(String script, ScriptContext context) throws ScriptException {
+        return run(prepare(script, context), context);
+    }
+
+    @Override
+    public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+        return eval(read(reader), context);
+    }
+
+    @Override
+    public CompiledScript compile(String script) throws ScriptException {
+        // not from the cache, which may close it while the host still holds it
+        try {
+            return new Compiled(PreparedScript.compile(script));
+        } catch (IllegalArgumentException error) {
+            throw new ScriptException(error.getMessage(), fileName(context), -1);
+        }
+    }
+
+    @Override
+    public CompiledScript compile(Reader script) throws ScriptException {
+        return compile(read(script));
+    }
+
+    @Override
+    public Bindings createBindings() {
+        return new SimpleBindings();
+    }
+
+    @Override
+    public ScriptEngineFactory getFactory() {
+        return factory;
+    }
+
+    @Override
+    public Object invokeFunction(String name, Object... args) throws ScriptException, NoSuchMethodException {
+        Map<String, Object> bindings = new HostScope(context.getBindings(ScriptContext.ENGINE_SCOPE));
+        Object callee = bindings.get(name);
+        if (!(callee instanceof WoxCallable))
+            throw new NoSuchMethodException("No function `" + name + "` is defined.");
+
+        WoxCallable function = (WoxCallable) callee;
+        int count = args == null ? 0 : args.length;
+        if (count != function.arity())
+            throw new ScriptException("Expected " + function.arity() + " arguments but got " + count + "!");
+        List<Object> arguments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            arguments.add(toWox(args[i]));
+        }
+
+        Output output = new Output(context.getWriter(), Output.DEFAULT_CAPACITY);
+        Interpreter interpreter = new Interpreter(output, null, bindings, globalScope(context));
+        try {
+            return function.call(interpreter, arguments);
+        } catch (RuntimeException | StackOverflowError error) {
+            throw scriptException(error, context);
+        } finally {
+            output.flush();
+        }
+    }
+
+    @Override
+    public Object invokeMethod(Object thiz, String name, Object... args) throws NoSuchMethodException {
+        throw new NoSuchMethodException("Wox values have no methods to invoke.");
+    }
+
+    // every method is called as the function of the same name
+    @Override
+    public <T> T getInterface(Class<T> type) {
+        if (type == null || !type.isInterface())
+            throw new IllegalArgumentException("not an interface: " + type);
+        Bindings bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+        for (Method method : type.getMethods()) {
+            if (!(bindings.get(method.getName()) instanceof WoxCallable))
+                return null;
+        }
+        Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                (self, method, args) -> invokeFunction(method.getName(), args));
+        return type.cast(proxy);
+    }
+
+    @Override
+    public <T> T getInterface(Object thiz, Class<T> type) {
+        throw new IllegalArgumentException("Wox values have no methods to implement an interface with.");
+    }
+
+    private PreparedScript prepare(String script, ScriptContext context) throws ScriptException {
+        try {
+            return factory.cache.get(script);
+        } catch (IllegalArgumentException error) {
+            throw new ScriptException(error.getMessage(), fileName(context), -1);
+        }
+    }
+
+    private static Object run(PreparedScript script, ScriptContext context) throws ScriptException {
+        Map<String, Object> bindings = new HostScope(context.getBindings(ScriptContext.ENGINE_SCOPE));
+        try {
+            return script.run(bindings, globalScope(context), context.getWriter());
+        } catch (RuntimeException | StackOverflowError error) {
+            throw scriptException(error, context);
+        }
+    }
+
+    private static Map<String, Object> globalScope(ScriptContext context) {
+        Bindings global = context.getBindings(ScriptContext.GLOBAL_SCOPE);
+        return global == null ? null : new HostScope(global);
+    }
+
+    private static Object toWox(Object value) {
+        if (value instanceof Number && !(value instanceof Double))
+            return ((Number) value).doubleValue();
+        return value;
+    }
+
+    private static ScriptException scriptException(Throwable error, ScriptContext context) {
+        ScriptException wrapped;
+        if (error instanceof Exception) {
+            int at = ((Exception) error).at;
+            wrapped = new ScriptException(error.getMessage(), fileName(context), Source.line(at), Source.column(at));
+        } else if (error instanceof Misuse) {
+            wrapped = new ScriptException(error.getMessage(), fileName(context), -1);
+        } else {
+            wrapped = new ScriptException("Internal error: " + error, fileName(context), -1);
+        }
+        wrapped.initCause(error);
+        return wrapped;
+    }
+
+    /**
+     * A scope of the host as the program sees it, with numbers of any type
+     * read as `Double`s. Everything else, writes included, goes straight
+     * through, so the host's map is never copied or rewritten.
+     */
+    private static class HostScope extends AbstractMap<String, Object> {
+        private final Map<String, Object> scope;
+
+        HostScope(Map<String, Object> scope) {
+            this.scope = scope;
+        }
+
+        @Override
+        public Object get(Object name) {
+            return toWox(scope.get(name));
+        }
+
+        @Override
+        public boolean containsKey(Object name) {
+            return scope.containsKey(name);
+        }
+
+        @Override
+        public Object put(String name, Object value) {
+            return scope.put(name, value);
+        }
+
+        @Override
+        public Object remove(Object name) {
+            return scope.remove(name);
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Map.Entry<String, Object>> iterator() {
+                    Iterator<Map.Entry<String, Object>> entries = scope.entrySet().iterator();
+                    return new Iterator<>() {
+                        @Override
+                        public boolean hasNext() {
+                            return entries.hasNext();
+                        }
+
+                        @Override
+                        public Map.Entry<String, Object> next() {
+                            Map.Entry<String, Object> entry = entries.next();
+                            return new SimpleImmutableEntry<>(entry.getKey(), toWox(entry.getValue()));
+                        }
+
+                        @Override
+                        public void remove() {
+                            entries.remove();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return scope.size();
+                }
+            };
+        }
+    }
+
+    private static String fileName(ScriptContext context) {
+        Object name = context.getAttribute(ScriptEngine.FILENAME);
+        return name == null ? null : name.toString();
+    }
+
+    private static String read(Reader reader) throws ScriptException {
+        StringBuilder text = new StringBuilder();
+        char[] buffer = new char[8192];
+        try {
+            for (int read = reader.read(buffer); read >= 0; read = reader.read(buffer)) {
+                text.append(buffer, 0, read);
+            }
+        } catch (IOException error) {
+            throw new ScriptException(error);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,106 @@
+package wox;
+
+import java.util.List;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+/**
+ * Makes Wox available through `javax.script`, e.g., to
+ * `new ScriptEngineManager().getEngineByName("wox")`, by way of the service
+ * entry under `META-INF/services`. Its engines share one `ScriptCache`, so
+ * a script evaluated over and over is only compiled once.
+ */
+public class WoxScriptEngineFactory implements ScriptEngineFactory {
+    // in characters of source, see `ScriptCache`
+    static final long CACHE_CAPACITY = 1 << 22;
+
+    private static final List<String> NAMES = List.of("wox", "Wox");
+    private static final List<String> EXTENSIONS = List.of("wox");
+    private static final List<String> MIME_TYPES = List.of("application/x-wox", "text/x-wox");
+
+    // shared by the engines of the factory
+    final ScriptCache cache = new ScriptCache(CACHE_CAPACITY);
+
+    @Override
+    public String getEngineName() {
+        return "Wox";
+    }
+
+    @Override
+    public String getEngineVersion() {
+        return "0.1";
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return EXTENSIONS;
+    }
+
+    @Override
+    public List<String> getMimeTypes() {
+        return MIME_TYPES;
+    }
+
+    @Override
+    public List<String> getNames() {
+        return NAMES;
+    }
+
+    @Override
+    public String getLanguageName() {
+        return "Wox";
+    }
+
+    @Override
+    public String getLanguageVersion() {
+        return "0.1";
+    }
+
+    @Override
+    public Object getParameter(String key) {
+        switch (key) {
+            case ScriptEngine.ENGINE:
+                return getEngineName();
+            case ScriptEngine.ENGINE_VERSION:
+                return getEngineVersion();
+            case ScriptEngine.LANGUAGE:
+                return getLanguageName();
+            case ScriptEngine.LANGUAGE_VERSION:
+                return getLanguageVersion();
+            case ScriptEngine.NAME:
+                return NAMES.get(0);
+            case "THREADING":
+                // compiled scripts may run concurrently, but only each with
+                // bindings of its own, which is less than "MULTITHREADED"
+                // promises
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public String getMethodCallSyntax(String obj, String m, String... args) {
+        return obj + "." + m + "(" + String.join(", ", args) + ")";
+    }
+
+    @Override
+    public String getOutputStatement(String toDisplay) {
+        return "print \"" + toDisplay.replace("\"", "") + "\";";
+    }
+
+    @Override
+    public String getProgram(String... statements) {
+        StringBuilder program = new StringBuilder();
+        for (String statement : statements) {
+            program.append(statement).append(";\n");
+        }
+        return program.toString();
+    }
+
+    @Override
+    public ScriptEngine getScriptEngine() {
+        return new WoxScriptEngine(this);
+    }
+}
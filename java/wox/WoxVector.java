@@ -0,0 +1,120 @@
+package wox;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * The value of a vector. For as long as it holds nothing but numbers, its
+ * elements are kept unboxed in a `double[]`, which numeric builtins may work
+ * on directly through `numbers()`. Storing anything that is not a number
+ * turns it into a general vector over an `Object[]`, for good.
+ *
+ * To everything else it is just a `List`, which compares, hashes and prints
+ * like any other list of the same elements.
+ */
+class WoxVector extends AbstractList<Object> implements RandomAccess {
+    // exactly one of the two is set
+    private double[] numbers;
+    private Object[] objects = null;
+    private int size = 0;
+
+    WoxVector(int capacity) {
+        numbers = new double[Math.max(capacity, 4)];
+    }
+
+    // takes over the first `size` elements of `numbers`, without copying
+    WoxVector(double[] numbers, int size) {
+        this.numbers = numbers;
+        this.size = size;
+    }
+
+    boolean isNumeric() {
+        return numbers != null;
+    }
+
+    // the backing array of a numeric vector, valid up to `size()` and until
+    // the vector is next stored into
+    double[] numbers() {
+        if (numbers == null)
+            throw new IllegalStateException("not a numeric vector");
+        return numbers;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Object get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index " + index + " of a vector of " + size);
+        return numbers != null ? (Object) numbers[index] : objects[index];
+    }
+
+    @Override
+    public Object set(int index, Object value) {
+        Object old = get(index);
+        if (numbers != null && value instanceof Double) {
+            numbers[index] = (double) value;
+        } else {
+            generalize();
+            objects[index] = value;
+        }
+        return old;
+    }
+
+    @Override
+    public boolean add(Object value) {
+        if (numbers != null && value instanceof Double) {
+            if (size == numbers.length)
+                numbers = Arrays.copyOf(numbers, Math.max(4, size * 2));
+            numbers[size++] = (double) value;
+        } else {
+            generalize();
+            if (size == objects.length)
+                objects = Arrays.copyOf(objects, Math.max(4, size * 2));
+            objects[size++] = value;
+        }
+        modCount++;
+        return true;
+    }
+
+    private void generalize() {
+        if (objects != null)
+            return;
+        objects = new Object[Math.max(4, numbers.length)];
+        for (int i = 0; i < size; i++) {
+            objects[i] = numbers[i];
+        }
+        numbers = null;
+    }
+
+    // the same as for any list of boxed numbers, without the boxing
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof WoxVector && numbers != null && ((WoxVector) other).numbers != null) {
+            WoxVector that = (WoxVector) other;
+            if (size != that.size)
+                return false;
+            for (int i = 0; i < size; i++) {
+                if (Double.doubleToLongBits(numbers[i]) != Double.doubleToLongBits(that.numbers[i]))
+                    return false;
+            }
+            return true;
+        }
+        return super.equals(other);
+    }
+
+    @Override
+    public int hashCode() {
+        if (numbers == null)
+            return super.hashCode();
+        int hash = 1;
+        for (int i = 0; i < size; i++) {
+            hash = 31 * hash + Double.hashCode(numbers[i]);
+        }
+        return hash;
+    }
+}